@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate restart points of large entries.
+ * <p>
+ * A segmented entry is deflated in independent segments, each ending on a full flush, so the concatenation is a
+ * regular deflate stream while every segment can also be inflated on its own. The segments are listed in a
+ * {@link #EXTRA_ID} extra field of the central directory as (compressed offset, uncompressed offset, crc) records.
+ * Entries of at least {@value #THRESHOLD_PROPERTY} bytes (64M by default) are segmented in chunks of
+ * {@value #SEGMENT_SIZE_PROPERTY} bytes (4M by default).
+ */
+final class DeflateSegments {
+
+  static final int EXTRA_ID = 0x5a50; // "PZ"
+  static final int RECORD_LENGTH = 20;
+  // the records share the 0xFFFF bytes of central directory extra fields with the largest zip64 extra
+  static final int MAX_EXTRA_LENGTH = 0xFFFF;
+  static final int MAX_ZIP64_EXTRA_LENGTH = 4 + 24;
+  static final int MAX_SEGMENTS = ( MAX_EXTRA_LENGTH - MAX_ZIP64_EXTRA_LENGTH - 4 ) / RECORD_LENGTH;
+
+  static final String THRESHOLD_PROPERTY = "parallel-zip.segmentThreshold";
+  static final String SEGMENT_SIZE_PROPERTY = "parallel-zip.segmentSize";
+
+  private static final long DEFAULT_THRESHOLD = 64L * 1024 * 1024;
+  private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+  private DeflateSegments() {
+    // static utility
+  }
+
+  static long getThreshold() {
+    return Long.getLong( THRESHOLD_PROPERTY, DEFAULT_THRESHOLD );
+  }
+
+  /**
+   * @return the segment size to use for an entry of {@code size} bytes, grown if needed to fit in one extra field
+   */
+  static int getSegmentSize( long size ) {
+    long segmentSize = Long.getLong( SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE );
+    segmentSize = Math.max( segmentSize, ( size + MAX_SEGMENTS - 1 ) / MAX_SEGMENTS );
+    return (int) Math.min( segmentSize, Integer.MAX_VALUE - 8 );
+  }
+
+  /**
+   * @param segments (compressed offset, uncompressed offset, crc) triples
+   * @return the complete extra field, header included
+   */
+  static byte[] encodeExtra( long[] segments ) {
+    int count = segments.length / 3;
+    ByteBuffer buf = ByteBuffer.allocate( 4 + count * RECORD_LENGTH ).order( ByteOrder.LITTLE_ENDIAN );
+    buf.putShort( (short) EXTRA_ID );
+    buf.putShort( (short) ( count * RECORD_LENGTH ) );
+    for ( int i = 0; i < segments.length; i += 3 ) {
+      buf.putLong( segments[ i ] );
+      buf.putLong( segments[ i + 1 ] );
+      buf.putInt( (int) segments[ i + 2 ] );
+    }
+    return buf.array();
+  }
+
+  /**
+   * @return the (compressed offset, uncompressed offset, crc) triples of an extra field body
+   */
+  static long[] decodeExtra( ByteBuffer buf, int pos, int length ) {
+    int count = length / RECORD_LENGTH;
+    long[] segments = new long[ count * 3 ];
+    for ( int i = 0; i < count; i++ ) {
+      int record = pos + i * RECORD_LENGTH;
+      segments[ i * 3 ] = buf.getLong( record );
+      segments[ i * 3 + 1 ] = buf.getLong( record + 8 );
+      segments[ i * 3 + 2 ] = buf.getInt( record + 16 ) & 0xFFFFFFFFL;
+    }
+    return segments;
+  }
+
+  static Segment deflate( byte[] data, int length, boolean last ) {
+    CRC32 crc = new CRC32();
+    crc.update( data, 0, length );
+
+    Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+    try {
+      deflater.setInput( data, 0, length );
+      ByteArrayOutputStream out = new ByteArrayOutputStream( length / 2 + 64 );
+      byte[] buf = new byte[ 1024 * 64 ];
+      if ( last ) {
+        deflater.finish();
+        while ( !deflater.finished() ) {
+          out.write( buf, 0, deflater.deflate( buf ) );
+        }
+      } else {
+        // a full flush ends on a byte boundary and drops the dictionary, the next segment starts from scratch
+        int n;
+        do {
+          n = deflater.deflate( buf, 0, buf.length, Deflater.FULL_FLUSH );
+          out.write( buf, 0, n );
+        } while ( n == buf.length || !deflater.needsInput() );
+      }
+      return new Segment( out.toByteArray(), length, crc.getValue() );
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Inflates one segment, which must produce exactly {@code length} bytes.
+   */
+  static byte[] inflate( byte[] compressed, int length ) throws DataFormatException {
+    Inflater inflater = new Inflater( true );
+    try {
+      inflater.setInput( compressed );
+      byte[] out = new byte[ length ];
+      int produced = 0;
+      while ( produced < length ) {
+        int n = inflater.inflate( out, produced, length - produced );
+        if ( n == 0 && ( inflater.needsInput() || inflater.finished() || inflater.needsDictionary() ) ) {
+          throw new DataFormatException( "Truncated deflate segment" );
+        }
+        produced += n;
+      }
+      return out;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * @return the crc of the concatenation of two blocks, {@code length2} being the length of the second one
+   */
+  static long combineCrc( long crc1, long crc2, long length2 ) {
+    // zlib's crc32_combine
+    if ( length2 <= 0 ) {
+      return crc1;
+    }
+    long[] even = new long[ 32 ];
+    long[] odd = new long[ 32 ];
+    odd[ 0 ] = 0xedb88320L;
+    long row = 1;
+    for ( int n = 1; n < 32; n++ ) {
+      odd[ n ] = row;
+      row <<= 1;
+    }
+    gf2MatrixSquare( even, odd );
+    gf2MatrixSquare( odd, even );
+    do {
+      gf2MatrixSquare( even, odd );
+      if ( ( length2 & 1 ) != 0 ) {
+        crc1 = gf2MatrixTimes( even, crc1 );
+      }
+      length2 >>= 1;
+      if ( length2 == 0 ) {
+        break;
+      }
+      gf2MatrixSquare( odd, even );
+      if ( ( length2 & 1 ) != 0 ) {
+        crc1 = gf2MatrixTimes( odd, crc1 );
+      }
+      length2 >>= 1;
+    } while ( length2 != 0 );
+    return crc1 ^ crc2;
+  }
+
+  private static long gf2MatrixTimes( long[] matrix, long vector ) {
+    long sum = 0;
+    for ( int i = 0; vector != 0; i++, vector >>>= 1 ) {
+      if ( ( vector & 1 ) != 0 ) {
+        sum ^= matrix[ i ];
+      }
+    }
+    return sum;
+  }
+
+  private static void gf2MatrixSquare( long[] square, long[] matrix ) {
+    for ( int n = 0; n < 32; n++ ) {
+      square[ n ] = gf2MatrixTimes( matrix, matrix[ n ] );
+    }
+  }
+
+  static class Segment {
+    final byte[] compressed;
+    final int length;
+    final long crc;
+
+    Segment( byte[] compressed, int length, long crc ) {
+      this.compressed = compressed;
+      this.length = length;
+      this.crc = crc;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import org.codehaus.plexus.components.io.fileselectors.AllFilesFileSelector;
+import org.codehaus.plexus.components.io.fileselectors.FileSelector;
+import org.codehaus.plexus.components.io.fileselectors.IncludeExcludeFileSelector;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared directory of already extracted archives, keyed by the archive checksum and the selectors used.
+ * <p>
+ * Enabled by pointing the {@value #CACHE_PROPERTY} system property to a directory. Each key owns an immutable
+ * {@code <key>} directory, populated through a {@code <key>.tmp} staging directory under a {@code <key>.lock} file
+ * lock so that concurrent builds extract an archive only once.
+ */
+final class ExtractionCache {
+
+  static final String CACHE_PROPERTY = "parallel-zip.extractCache";
+
+  // FileChannel locks are held per JVM, threads of the same JVM serialize on these first
+  private static final ConcurrentMap<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+  private final Path root;
+
+  ExtractionCache( Path root ) {
+    this.root = root;
+  }
+
+  /**
+   * @return the configured cache, or null when caching is disabled
+   */
+  static ExtractionCache getConfigured() {
+    String value = System.getProperty( CACHE_PROPERTY );
+    if ( value == null || value.trim().isEmpty() ) {
+      return null;
+    }
+    return new ExtractionCache( Paths.get( value.trim() ).toAbsolutePath() );
+  }
+
+  /**
+   * @return the cache key, or null when the selectors can't be described and the archive must not be cached
+   */
+  String getKey( File archive, FileSelector[] selectors ) throws IOException {
+    MessageDigest digest = newDigest();
+    FileChannel channel = FileChannel.open( archive.toPath(), StandardOpenOption.READ );
+    try {
+      ByteBuffer buf = ByteBuffer.allocate( 1024 * 64 );
+      while ( channel.read( buf ) >= 0 ) {
+        buf.flip();
+        digest.update( buf );
+        buf.clear();
+      }
+    } finally {
+      channel.close();
+    }
+    if ( selectors != null ) {
+      for ( FileSelector selector : selectors ) {
+        String description = describe( selector );
+        if ( description == null ) {
+          return null;
+        }
+        digest.update( description.getBytes( StandardCharsets.UTF_8 ) );
+      }
+    }
+    StringBuilder key = new StringBuilder();
+    for ( byte b : digest.digest() ) {
+      key.append( String.format( "%02x", b ) );
+    }
+    return key.toString();
+  }
+
+  Path getEntries( String key ) {
+    return root.resolve( key );
+  }
+
+  boolean isComplete( String key ) {
+    return Files.isDirectory( getEntries( key ) );
+  }
+
+  /**
+   * @return an empty staging directory to extract the archive into before {@link #commit(String, Path)}
+   */
+  Path newStaging( String key ) throws IOException {
+    Path staging = root.resolve( key + ".tmp" );
+    if ( Files.exists( staging ) ) {
+      // left behind by an interrupted build
+      FileTrees.deleteTree( staging );
+    }
+    return Files.createDirectories( staging );
+  }
+
+  /**
+   * Publishes {@code staging} as the entries of {@code key}. Its files are made read-only first: they get hard linked
+   * into destinations, and anything writing through a link in place would change every other copy.
+   */
+  void commit( String key, Path staging ) throws IOException {
+    Files.walkFileTree( staging, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+        if ( attrs.isRegularFile() && !file.toFile().setWritable( false, false ) ) {
+          throw new IOException( "Unable to make " + file + " read-only" );
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    } );
+    Files.move( staging, getEntries( key ), StandardCopyOption.ATOMIC_MOVE );
+  }
+
+  /**
+   * Locks {@code key} against other threads and processes, blocking until it is available.
+   */
+  Closeable lock( String key ) throws IOException {
+    ReentrantLock jvmLock = new ReentrantLock();
+    ReentrantLock existing = LOCKS.putIfAbsent( key, jvmLock );
+    final ReentrantLock lock = existing != null ? existing : jvmLock;
+    lock.lock();
+    try {
+      Files.createDirectories( root );
+      final FileChannel channel = FileChannel
+        .open( root.resolve( key + ".lock" ), StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+      final FileLock fileLock;
+      try {
+        fileLock = channel.lock();
+      } catch ( IOException e ) {
+        channel.close();
+        throw e;
+      }
+      return new Closeable() {
+        @Override public void close() throws IOException {
+          try {
+            fileLock.release();
+            channel.close();
+          } finally {
+            lock.unlock();
+          }
+        }
+      };
+    } catch ( IOException e ) {
+      lock.unlock();
+      throw e;
+    }
+  }
+
+  private static String describe( FileSelector selector ) {
+    if ( selector instanceof AllFilesFileSelector ) {
+      return "all;";
+    }
+    if ( selector instanceof IncludeExcludeFileSelector ) {
+      IncludeExcludeFileSelector s = (IncludeExcludeFileSelector) selector;
+      return "includes=" + Arrays.toString( s.getIncludes() ) + ";excludes=" + Arrays.toString( s.getExcludes() )
+        + ";caseSensitive=" + s.isCaseSensitive() + ";defaultExcludes=" + s.isUseDefaultExcludes() + ";";
+    }
+    return null;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance( "SHA-256" );
+    } catch ( NoSuchAlgorithmException e ) {
+      throw new IllegalStateException( e );
+    }
+  }
+}
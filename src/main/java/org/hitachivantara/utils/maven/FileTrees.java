@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * File tree operations shared by the archivers.
+ */
+final class FileTrees {
+
+  private FileTrees() {
+    // static utility
+  }
+
+  /**
+   * Deletes {@code dir} and everything below it, without following links.
+   */
+  static void deleteTree( Path dir ) throws IOException {
+    Files.walkFileTree( dir, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+        Files.delete( file );
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override public FileVisitResult postVisitDirectory( Path d, IOException e ) throws IOException {
+        if ( e != null ) {
+          throw e;
+        }
+        Files.delete( d );
+        return FileVisitResult.CONTINUE;
+      }
+    } );
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Entry tasks of one archiver, each holding a {@link MemoryGovernor} reservation until it completes and an I/O permit
+ * while it runs.
+ *
+ * @see ParallelExecutors#newIoPermits(ExecutorService)
+ */
+final class GovernedTasks {
+
+  static final int BUFFER_SIZE = 1024 * 256; //256K
+  static final int MIN_BUFFER_SIZE = 1024 * 8;
+
+  private final ExecutorService executorService;
+  private final MemoryGovernor memoryGovernor;
+  private final Semaphore ioPermits;
+  private final List<Future<Integer>> futures = new ArrayList<>();
+  private int pruneThreshold = 1024;
+
+  GovernedTasks( ExecutorService executorService, MemoryGovernor memoryGovernor ) {
+    this.executorService = executorService;
+    this.memoryGovernor = memoryGovernor;
+    this.ioPermits = ParallelExecutors.newIoPermits( executorService );
+  }
+
+  /**
+   * @return the copy buffer size for an entry of {@code size} bytes, small entries don't need a full buffer
+   */
+  static int bufferSize( long size ) {
+    if ( size < 0 || size >= BUFFER_SIZE ) {
+      return BUFFER_SIZE;
+    }
+    return Math.max( (int) size, MIN_BUFFER_SIZE );
+  }
+
+  long reserve( long bytes ) throws IOException {
+    try {
+      return memoryGovernor.reserve( bytes );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new IOException( "Interrupted exception", e );
+    }
+  }
+
+  /**
+   * Submits {@code task}, releasing {@code reserved} bytes once it completes.
+   */
+  void submit( final long reserved, final Callable<Integer> task ) throws IOException {
+    futures.add( executorService.submit( new Callable<Integer>() {
+      @Override public Integer call() throws Exception {
+        try {
+          ioPermits.acquire();
+          try {
+            return task.call();
+          } finally {
+            ioPermits.release();
+          }
+        } finally {
+          memoryGovernor.release( reserved );
+        }
+      }
+    } ) );
+    if ( futures.size() >= pruneThreshold ) {
+      prune();
+    }
+  }
+
+  /**
+   * Waits for every submitted task, rethrowing the first failure.
+   */
+  void awaitAll() throws IOException {
+    try {
+      // Make sure we catch any exceptions from parallel phase
+      for ( final Future<?> future : futures ) {
+        future.get();
+      }
+      futures.clear();
+    } catch ( InterruptedException e ) {
+      throw new IOException( "Interrupted exception", e.getCause() );
+    } catch ( ExecutionException e ) {
+      throw new IOException( "Execution exception", e.getCause() );
+    }
+  }
+
+  private void prune() throws IOException {
+    // drop finished tasks so bookkeeping does not grow with the archive, surfacing their failures early
+    Iterator<Future<Integer>> iterator = futures.iterator();
+    while ( iterator.hasNext() ) {
+      Future<Integer> future = iterator.next();
+      if ( future.isDone() ) {
+        try {
+          future.get();
+        } catch ( InterruptedException e ) {
+          throw new IOException( "Interrupted exception", e.getCause() );
+        } catch ( ExecutionException e ) {
+          throw new IOException( "Execution exception", e.getCause() );
+        }
+        iterator.remove();
+      }
+    }
+    pruneThreshold = Math.max( 1024, futures.size() * 2 );
+  }
+}
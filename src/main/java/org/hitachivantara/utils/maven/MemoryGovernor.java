@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+/**
+ * Byte budget shared by the entries in flight of every archiver of the JVM, so that archivers running concurrently
+ * in a parallel build don't each claim their own share of the heap.
+ * <p>
+ * Producers reserve an estimate before submitting an entry and block while the budget is exhausted; tasks release
+ * it once the entry has been written. The limit comes from the {@value #LIMIT_PROPERTY} system property (bytes, with
+ * an optional k/m/g suffix) and defaults to a quarter of the maximum heap. Each archiver draws from the shared
+ * budget through its own {@link #newAccount() account}, so the peak it reports is its own.
+ */
+final class MemoryGovernor {
+
+  static final String LIMIT_PROPERTY = "parallel-zip.memoryLimit";
+
+  // deflater/inflater state, stream wrappers, future and closure of a task
+  static final long ENTRY_OVERHEAD = 64 * 1024;
+
+  private static MemoryGovernor shared;
+
+  private final long limit;
+  // the budget this account draws from, null for a budget of its own
+  private final MemoryGovernor parent;
+  private long inFlight;
+  private long peak;
+
+  MemoryGovernor( long limit ) {
+    this.limit = limit;
+    this.parent = null;
+  }
+
+  private MemoryGovernor( MemoryGovernor parent ) {
+    this.limit = parent.limit;
+    this.parent = parent;
+  }
+
+  /**
+   * @return the JVM wide governor, its limit read from {@value #LIMIT_PROPERTY} on first use
+   */
+  static synchronized MemoryGovernor getShared() {
+    if ( shared == null ) {
+      shared = new MemoryGovernor( getConfiguredLimit() );
+    }
+    return shared;
+  }
+
+  static long getConfiguredLimit() {
+    String value = System.getProperty( LIMIT_PROPERTY );
+    if ( value == null || value.trim().isEmpty() ) {
+      return Runtime.getRuntime().maxMemory() / 4;
+    }
+    value = value.trim().toLowerCase();
+    long unit = 1;
+    switch ( value.charAt( value.length() - 1 ) ) {
+      case 'k':
+        unit = 1024L;
+        break;
+      case 'm':
+        unit = 1024L * 1024;
+        break;
+      case 'g':
+        unit = 1024L * 1024 * 1024;
+        break;
+      default:
+        break;
+    }
+    if ( unit > 1 ) {
+      value = value.substring( 0, value.length() - 1 ).trim();
+    }
+    long limit;
+    try {
+      limit = Long.parseLong( value ) * unit;
+    } catch ( NumberFormatException e ) {
+      throw new IllegalArgumentException( "Invalid " + LIMIT_PROPERTY + ": " + System.getProperty( LIMIT_PROPERTY ), e );
+    }
+    if ( limit <= 0 ) {
+      // a limit of zero would clamp every reservation to nothing and disable the governor altogether
+      throw new IllegalArgumentException( "Invalid " + LIMIT_PROPERTY + ": " + System.getProperty( LIMIT_PROPERTY )
+        + ", it must be positive" );
+    }
+    return limit;
+  }
+
+  /**
+   * @return an account drawing from this budget that tracks its own usage, so that each archiver reports its own peak
+   */
+  MemoryGovernor newAccount() {
+    return new MemoryGovernor( this );
+  }
+
+  /**
+   * Blocks until {@code bytes} fit in the budget. A single reservation larger than the limit is clamped to it, so it
+   * waits for everything else to drain instead of blocking forever.
+   *
+   * @return the amount actually reserved, to be handed back to {@link #release(long)}
+   */
+  long reserve( long bytes ) throws InterruptedException {
+    if ( parent != null ) {
+      // never hold this account's lock while waiting on the shared budget, tasks need it to release
+      return record( parent.reserve( bytes ) );
+    }
+    synchronized ( this ) {
+      long amount = Math.min( bytes, limit );
+      while ( inFlight + amount > limit ) {
+        wait();
+      }
+      return record( amount );
+    }
+  }
+
+  /**
+   * Same as {@link #reserve(long)} without blocking, for producers that already hold reservations they could
+   * release instead of waiting.
+   *
+   * @return the amount reserved, or -1 if it doesn't fit right now
+   */
+  long tryReserve( long bytes ) {
+    if ( parent != null ) {
+      long amount = parent.tryReserve( bytes );
+      return amount < 0 ? amount : record( amount );
+    }
+    synchronized ( this ) {
+      long amount = Math.min( bytes, limit );
+      return inFlight + amount > limit ? -1 : record( amount );
+    }
+  }
+
+  void release( long bytes ) {
+    if ( parent != null ) {
+      parent.release( bytes );
+    }
+    synchronized ( this ) {
+      inFlight -= bytes;
+      notifyAll();
+    }
+  }
+
+  private synchronized long record( long amount ) {
+    inFlight += amount;
+    peak = Math.max( peak, inFlight );
+    return amount;
+  }
+
+  synchronized long getPeak() {
+    return peak;
+  }
+
+  long getLimit() {
+    return limit;
+  }
+
+  String describePeak() {
+    return "Peak in-flight memory: " + getPeak() / 1024 + " KB of " + limit / 1024 + " KB";
+  }
+}
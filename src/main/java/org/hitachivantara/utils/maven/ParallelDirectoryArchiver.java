@@ -18,27 +18,110 @@ import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ParallelDirectoryArchiver extends DirectoryArchiver {
+
+  static final String SYNC_PROPERTY = "parallel-zip.dir.sync";
+  static final String SYNC_CHECKSUM_PROPERTY = "parallel-zip.dir.sync.checksum";
+  // milliseconds, for destinations on file systems such as HFS+ or FAT that only keep times to the second or worse
+  static final String SYNC_TIME_TOLERANCE_PROPERTY = "parallel-zip.dir.sync.timeTolerance";
+
   private ExecutorService executorService;
+  private final Semaphore ioPermits;
   private List<Future<Integer>> futures = new ArrayList<>();
 
+  private boolean sync = Boolean.getBoolean( SYNC_PROPERTY );
+  private boolean syncChecksum = Boolean.getBoolean( SYNC_CHECKSUM_PROPERTY );
+  private long syncTimeTolerance = Long.getLong( SYNC_TIME_TOLERANCE_PROPERTY, 0L );
+  private List<Path> staleDirectories = new ArrayList<>();
+  private final AtomicInteger copied = new AtomicInteger();
+  private final AtomicInteger unchanged = new AtomicInteger();
+  private int removed;
+
   public ParallelDirectoryArchiver() {
-    this.executorService = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+    this.executorService = ParallelExecutors.newIoBoundExecutor();
+    this.ioPermits = ParallelExecutors.newIoPermits( executorService );
+  }
+
+  /**
+   * Submits {@code task} to run while holding an I/O permit, so virtual threads don't open every file at once.
+   */
+  private <T> Future<T> submit( final Callable<T> task ) {
+    return executorService.submit( new Callable<T>() {
+      @Override public T call() throws Exception {
+        ioPermits.acquire();
+        try {
+          return task.call();
+        } finally {
+          ioPermits.release();
+        }
+      }
+    } );
+  }
+
+  /**
+   * In sync mode the destination mirrors the resource set: only new or changed files are copied and files that are
+   * no longer part of it are deleted.
+   */
+  public void setSync( boolean sync ) {
+    this.sync = sync;
+  }
+
+  public boolean isSync() {
+    return sync;
+  }
+
+  /**
+   * Compare the content of files with the same size instead of their modification time, only used in sync mode.
+   */
+  public void setSyncChecksum( boolean syncChecksum ) {
+    this.syncChecksum = syncChecksum;
+  }
+
+  public boolean isSyncChecksum() {
+    return syncChecksum;
+  }
+
+  /**
+   * Modification times within {@code syncTimeTolerance} milliseconds count as equal, only used in sync mode. Defaults
+   * to 0, an exact match.
+   */
+  public void setSyncTimeTolerance( long syncTimeTolerance ) {
+    this.syncTimeTolerance = syncTimeTolerance;
+  }
+
+  public long getSyncTimeTolerance() {
+    return syncTimeTolerance;
   }
 
   @Override public void execute() throws ArchiverException, IOException {
     getLogger().info( "Using Java NIO" );
+    getLogger().debug( "Copying with " + ParallelExecutors.describe( executorService ) );
+    String fallbackWarning = ParallelExecutors.getFallbackWarning( executorService );
+    if ( fallbackWarning != null ) {
+      getLogger().warn( fallbackWarning );
+    }
     // Most of this method was copied from org.codehaus.plexus.archiver.tar.TarArchiver
     // and modified to store files in a directory, not a tar archive.
     final ResourceIterator iter = getResources();
@@ -57,6 +140,12 @@ public class ParallelDirectoryArchiver extends DirectoryArchiver {
       throw new ArchiverException( destDirectory + " is not writable." );
     }
 
+    if ( sync ) {
+      getLogger().info( "Synchronizing files to " + destDirectory.getAbsolutePath() );
+      syncResources( iter, destDirectory );
+      return;
+    }
+
     getLogger().info( "Copying files to " + destDirectory.getAbsolutePath() );
 
     while ( iter.hasNext() ) {
@@ -65,7 +154,7 @@ public class ParallelDirectoryArchiver extends DirectoryArchiver {
       if ( ResourceUtils.isSame( f.getResource(), destDirectory ) ) {
         throw new ArchiverException( "The destination directory cannot include itself." );
       }
-      futures.add( executorService.submit( new Callable<Integer>() {
+      futures.add( submit( new Callable<Integer>() {
         @Override public Integer call() throws Exception {
           String fileName = f.getName();
           final String destDir = destDirectory.getCanonicalPath();
@@ -84,6 +173,216 @@ public class ParallelDirectoryArchiver extends DirectoryArchiver {
     }
   }
 
+  private void syncResources( ResourceIterator iter, File destDirectory ) throws IOException {
+    final Path destPath = destDirectory.getCanonicalFile().toPath();
+    final Map<Path, BasicFileAttributes> existing = destDirectory.exists()
+      ? scanDestination( destPath )
+      : new HashMap<Path, BasicFileAttributes>();
+
+    int total = 0;
+    while ( iter.hasNext() ) {
+      final ArchiveEntry f = iter.next();
+      if ( ResourceUtils.isSame( f.getResource(), destDirectory ) ) {
+        throw new ArchiverException( "The destination directory cannot include itself." );
+      }
+      total++;
+      final Path target = destPath.resolve( f.getName() ).normalize();
+      if ( target.equals( destPath ) && Files.isDirectory( destPath ) ) {
+        unchanged.incrementAndGet();
+        continue;
+      }
+      BasicFileAttributes attrs = existing.remove( target );
+      for ( Path parent = target.getParent(); parent != null && parent.startsWith( destPath );
+            parent = parent.getParent() ) {
+        BasicFileAttributes parentAttrs = existing.remove( parent );
+        if ( parentAttrs != null && !parentAttrs.isDirectory() ) {
+          // a file became a directory
+          deleteReplaced( parent, parentAttrs, existing );
+        }
+      }
+
+      final PlexusIoResource resource = f.getResource();
+      if ( resource instanceof SymlinkDestinationSupplier ) {
+        if ( attrs != null ) {
+          deleteReplaced( target, attrs, existing );
+        }
+        final File link = target.toFile();
+        futures.add( submit( new Callable<Integer>() {
+          @Override public Integer call() throws Exception {
+            String dest = ( (SymlinkDestinationSupplier) resource ).getSymlinkDestination();
+            SymlinkUtils.createSymbolicLink( link, new File( dest ) );
+            copied.incrementAndGet();
+            return 0;
+          }
+        } ) );
+        continue;
+      }
+
+      if ( attrs != null && resource.isFile() && attrs.isRegularFile() && attrs.size() == resource.getSize() ) {
+        if ( !syncChecksum ) {
+          if ( isSameTime( attrs, resource.getLastModified() ) ) {
+            unchanged.incrementAndGet();
+            continue;
+          }
+        } else {
+          // the content comparison needs to read both files, leave it to the tasks
+          futures.add( submit( new Callable<Integer>() {
+            @Override public Integer call() throws Exception {
+              if ( hasSameContent( resource, target ) ) {
+                setFileModes( f, target.toFile(), resource.getLastModified() );
+                unchanged.incrementAndGet();
+              } else {
+                syncFile( f, target );
+              }
+              return 0;
+            }
+          } ) );
+          continue;
+        }
+      }
+      if ( attrs != null && resource.isDirectory() && attrs.isDirectory() ) {
+        unchanged.incrementAndGet();
+        continue;
+      }
+      if ( attrs != null && resource.isDirectory() != attrs.isDirectory() ) {
+        // the type changed, clear the way before the tasks run so none of them races the old tree
+        deleteReplaced( target, attrs, existing );
+      }
+
+      futures.add( submit( new Callable<Integer>() {
+        @Override public Integer call() throws Exception {
+          syncFile( f, target );
+          return 0;
+        }
+      } ) );
+    }
+
+    // whatever is left in the destination is no longer part of the resource set
+    for ( Map.Entry<Path, BasicFileAttributes> stale : existing.entrySet() ) {
+      final Path path = stale.getKey();
+      removed++;
+      if ( stale.getValue().isDirectory() ) {
+        staleDirectories.add( path );
+        continue;
+      }
+      futures.add( submit( new Callable<Integer>() {
+        @Override public Integer call() throws Exception {
+          getLogger().debug( "removing " + path );
+          Files.deleteIfExists( path );
+          return 0;
+        }
+      } ) );
+    }
+    getLogger().debug( total + " resources, " + unchanged.get() + " up to date, " + removed + " stale" );
+  }
+
+  /**
+   * Deletes {@code path}, recursively for a directory whose descendants are then dropped from {@code existing}.
+   */
+  private void deleteReplaced( Path path, BasicFileAttributes attrs, Map<Path, BasicFileAttributes> existing )
+    throws IOException {
+    getLogger().debug( "replacing " + path );
+    if ( attrs.isDirectory() ) {
+      Iterator<Path> paths = existing.keySet().iterator();
+      while ( paths.hasNext() ) {
+        if ( paths.next().startsWith( path ) ) {
+          paths.remove();
+        }
+      }
+      FileTrees.deleteTree( path );
+    } else {
+      Files.delete( path );
+    }
+  }
+
+  private void syncFile( ArchiveEntry entry, Path target ) throws IOException {
+    writeFile( entry, target.toFile() );
+    copied.incrementAndGet();
+  }
+
+  private boolean isSameTime( BasicFileAttributes attrs, long lastModified ) {
+    return lastModified != PlexusIoResource.UNKNOWN_MODIFICATION_DATE
+      && Math.abs( attrs.lastModifiedTime().toMillis() - lastModified ) <= syncTimeTolerance;
+  }
+
+  private static boolean hasSameContent( PlexusIoResource resource, Path target ) throws IOException {
+    byte[] expected = digest( resource.getContents() );
+    byte[] actual = digest( Files.newInputStream( target ) );
+    return MessageDigest.isEqual( expected, actual );
+  }
+
+  private static byte[] digest( InputStream inputStream ) throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+      byte[] buf = new byte[ 1024 * 64 ];
+      int read;
+      while ( ( read = inputStream.read( buf ) ) >= 0 ) {
+        digest.update( buf, 0, read );
+      }
+      return digest.digest();
+    } catch ( NoSuchAlgorithmException e ) {
+      throw new IllegalStateException( e );
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Lists the destination tree one level at a time, each directory of a level in parallel.
+   */
+  private Map<Path, BasicFileAttributes> scanDestination( Path root ) throws IOException {
+    final Map<Path, BasicFileAttributes> found = new ConcurrentHashMap<>();
+    List<Path> level = Collections.singletonList( root );
+    try {
+      while ( !level.isEmpty() ) {
+        List<Future<List<Path>>> listings = new ArrayList<>();
+        for ( final Path dir : level ) {
+          listings.add( submit( new Callable<List<Path>>() {
+            @Override public List<Path> call() throws Exception {
+              List<Path> subdirs = new ArrayList<>();
+              DirectoryStream<Path> stream = Files.newDirectoryStream( dir );
+              try {
+                for ( Path path : stream ) {
+                  BasicFileAttributes attrs =
+                    Files.readAttributes( path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS );
+                  found.put( path, attrs );
+                  if ( attrs.isDirectory() ) {
+                    subdirs.add( path );
+                  }
+                }
+              } finally {
+                stream.close();
+              }
+              return subdirs;
+            }
+          } ) );
+        }
+        level = new ArrayList<>();
+        for ( Future<List<Path>> listing : listings ) {
+          level.addAll( listing.get() );
+        }
+      }
+    } catch ( InterruptedException e ) {
+      throw new IOException( "Interrupted exception", e.getCause() );
+    } catch ( ExecutionException e ) {
+      throw new IOException( "Execution exception", e.getCause() );
+    }
+    return found;
+  }
+
+  private void removeStaleDirectories() throws IOException {
+    // reverse order deletes children before their parent directories
+    Collections.sort( staleDirectories, Collections.reverseOrder() );
+    for ( Path dir : staleDirectories ) {
+      getLogger().debug( "removing " + dir );
+      Files.deleteIfExists( dir );
+    }
+    if ( sync ) {
+      getLogger().info( "Copied " + copied.get() + " entries, " + unchanged.get() + " up to date, removed " + removed );
+    }
+    staleDirectories.clear();
+  }
+
   @Override protected void copyFile( final ArchiveEntry entry, final String vPath )
     throws ArchiverException, IOException {
     // don't add "" to the archive
@@ -93,7 +392,6 @@ public class ParallelDirectoryArchiver extends DirectoryArchiver {
 
     final PlexusIoResource in = entry.getResource();
     final File outFile = new File( vPath );
-    final Path out = outFile.toPath();
 
     final long inLastModified = in.getLastModified();
     final long outLastModified = outFile.lastModified();
@@ -101,8 +399,18 @@ public class ParallelDirectoryArchiver extends DirectoryArchiver {
       return;
     }
 
+    writeFile( entry, outFile );
+  }
+
+  private void writeFile( final ArchiveEntry entry, final File outFile ) throws ArchiverException, IOException {
+    final PlexusIoResource in = entry.getResource();
+    final Path out = outFile.toPath();
+    final long inLastModified = in.getLastModified();
+
     if ( in.isFile() ) {
       Files.createDirectories( out.getParent() );
+      // replace rather than truncate, the file may be hard linked elsewhere
+      Files.deleteIfExists( out );
       InputStream inputStream = in.getContents();
       ReadableByteChannel inChannel = Channels.newChannel( inputStream );
 
@@ -149,6 +457,7 @@ public class ParallelDirectoryArchiver extends DirectoryArchiver {
         executorService.shutdown();
         executorService
           .awaitTermination( 1000 * 60L, TimeUnit.SECONDS ); // == Infinity. We really *must* wait for this to complete
+        removeStaleDirectories();
       } catch ( InterruptedException e ) {
         throw new IOException( "Interrupted exception", e.getCause() );
       } catch ( ExecutionException e ) {
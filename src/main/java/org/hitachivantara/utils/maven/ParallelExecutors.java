@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Creates the executors used by the archivers.
+ * <p>
+ * CPU bound work (deflate/inflate) always runs on a pool sized to the available processors. I/O bound work runs on
+ * virtual threads when the {@value #EXECUTOR_PROPERTY} system property is set to {@value #VIRTUAL} and the JVM
+ * provides them (JDK 21+), otherwise it shares the shape of the CPU bound pool. Virtual threads don't bound the
+ * number of files open at once, so their tasks take one of {@value #IO_CONCURRENCY_PROPERTY} permits (4 per processor
+ * by default) while they touch the file system.
+ */
+final class ParallelExecutors {
+
+  static final String EXECUTOR_PROPERTY = "parallel-zip.executor";
+  static final String PLATFORM = "platform";
+  static final String VIRTUAL = "virtual";
+  static final String IO_CONCURRENCY_PROPERTY = "parallel-zip.ioConcurrency";
+
+  private ParallelExecutors() {
+    // static utility
+  }
+
+  static int getParallelism() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  static ExecutorService newCpuBoundExecutor() {
+    return Executors.newFixedThreadPool( getParallelism() );
+  }
+
+  static ExecutorService newIoBoundExecutor() {
+    ExecutorService executorService = isVirtualRequested() ? newVirtualThreadExecutor() : null;
+    return executorService != null ? executorService : newCpuBoundExecutor();
+  }
+
+  /**
+   * @return the permits I/O tasks of {@code executorService} hold while files are open, only limiting virtual threads
+   * since a thread pool already bounds them
+   */
+  static Semaphore newIoPermits( ExecutorService executorService ) {
+    return new Semaphore( executorService instanceof ThreadPoolExecutor ? Integer.MAX_VALUE : getIoConcurrency() );
+  }
+
+  static int getIoConcurrency() {
+    int concurrency = Integer.getInteger( IO_CONCURRENCY_PROPERTY, 4 * getParallelism() );
+    if ( concurrency < 1 ) {
+      throw new IllegalArgumentException( "Invalid " + IO_CONCURRENCY_PROPERTY + ": " + concurrency );
+    }
+    return concurrency;
+  }
+
+  static String describe( ExecutorService executorService ) {
+    return executorService instanceof ThreadPoolExecutor
+      ? ( (ThreadPoolExecutor) executorService ).getMaximumPoolSize() + " threads"
+      : "virtual threads, at most " + getIoConcurrency() + " doing I/O";
+  }
+
+  /**
+   * @return a warning when virtual threads were requested but {@code executorService} fell back to platform threads,
+   * otherwise null
+   */
+  static String getFallbackWarning( ExecutorService executorService ) {
+    if ( !isVirtualRequested() || !( executorService instanceof ThreadPoolExecutor ) ) {
+      return null;
+    }
+    return EXECUTOR_PROPERTY + "=" + VIRTUAL + " requested but virtual threads are not available on Java "
+      + System.getProperty( "java.version" ) + ", using " + describe( executorService );
+  }
+
+  private static boolean isVirtualRequested() {
+    return VIRTUAL.equalsIgnoreCase( System.getProperty( EXECUTOR_PROPERTY, PLATFORM ).trim() );
+  }
+
+  private static ExecutorService newVirtualThreadExecutor() {
+    // looked up reflectively so the same jar keeps running on JDKs without virtual threads
+    try {
+      Method method = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+      return (ExecutorService) method.invoke( null );
+    } catch ( ReflectiveOperationException e ) {
+      // older JDK, or virtual threads still in preview
+      return null;
+    }
+  }
+}
@@ -25,7 +25,9 @@ import org.codehaus.plexus.archiver.exceptions.EmptyArchiveException;
 import org.codehaus.plexus.archiver.util.ResourceUtils;
 import org.codehaus.plexus.archiver.zip.ZipArchiver;
 import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.components.io.functions.ContentSupplier;
 import org.codehaus.plexus.components.io.functions.SymlinkDestinationSupplier;
+import org.codehaus.plexus.components.io.resources.PlexusIoResource;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -38,35 +40,53 @@ import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystem;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 
 @Component( role = Archiver.class, hint = "zip" )
 public class ParallelZipArchiver extends ZipArchiver {
 
+  // zip entries store DOS timestamps with a 2 second resolution
+  private static final long ZIP_TIME_GRANULARITY = 2000L;
+
   private FileSystem zipfs;
   private File zipFile;
   private ExecutorService executorService;
-  private List<Future<Integer>> futures = new ArrayList<>();
+  private GovernedTasks tasks;
+  private final MemoryGovernor memoryGovernor = MemoryGovernor.getShared().newAccount();
+
+  // entries of the existing archive not (yet) matched by a resource, only used in update mode
+  private Set<String> staleEntries = new HashSet<>();
+  private boolean updating;
+
+  // large files, appended with deflate restart points once zipfs is closed
+  private List<SegmentedEntryWriter.Entry> segmentedEntries = new ArrayList<>();
+  private final long segmentThreshold = DeflateSegments.getThreshold();
 
 
   public ParallelZipArchiver() {
     super();
     this.archiveType = "zip";
-    this.executorService = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+    this.executorService = ParallelExecutors.newCpuBoundExecutor();
+    this.tasks = new GovernedTasks( executorService, memoryGovernor );
   }
 
   @Override protected void execute() throws ArchiverException, IOException {
@@ -94,11 +114,44 @@ public class ParallelZipArchiver extends ZipArchiver {
     }
 
     getLogger().info( "Using concurrent ZIP compression with Java NIO" );
-    getLogger().info( "Building zip: " + zipFile.getAbsolutePath() );
+    getLogger().debug( "Compressing with " + ParallelExecutors.describe( executorService ) );
+    String fallbackWarning = ParallelExecutors.getFallbackWarning( executorService );
+    if ( fallbackWarning != null ) {
+      getLogger().warn( fallbackWarning );
+    }
+    updating = isInUpdateMode() && zipFile.exists();
+    if ( updating ) {
+      getLogger().info( "Updating zip: " + zipFile.getAbsolutePath() );
+    } else {
+      getLogger().info( "Building zip: " + zipFile.getAbsolutePath() );
+      // start from scratch, otherwise zipfs would keep entries of a previous build
+      Files.deleteIfExists( zipFile.toPath() );
+    }
     createZipFileSystem();
+    if ( updating ) {
+      collectExistingEntries();
+    }
     addResources( iter );
   }
 
+  private void collectExistingEntries() throws IOException {
+    for ( final Path root : zipfs.getRootDirectories() ) {
+      Files.walkFileTree( root, new SimpleFileVisitor<Path>() {
+        @Override public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs ) {
+          if ( !dir.equals( root ) ) {
+            staleEntries.add( root.relativize( dir ).toString() );
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) {
+          staleEntries.add( root.relativize( file ).toString() );
+          return FileVisitResult.CONTINUE;
+        }
+      } );
+    }
+  }
+
   protected final void addResources( @Nonnull ResourceIterator resources ) throws IOException {
     ArchiveEntry entry;
     String name;
@@ -117,6 +170,18 @@ public class ParallelZipArchiver extends ZipArchiver {
         name = name + "/";
       }
 
+      if ( updating ) {
+        // keep the parents of this entry as well, zipfs may list them as directories
+        String path = name.endsWith( "/" ) ? name.substring( 0, name.length() - 1 ) : name;
+        while ( staleEntries.remove( path ) ) {
+          int slash = path.lastIndexOf( '/' );
+          if ( slash < 0 ) {
+            break;
+          }
+          path = path.substring( 0, slash );
+        }
+      }
+
       zipFile( entry, name );
     }
   }
@@ -127,11 +192,34 @@ public class ParallelZipArchiver extends ZipArchiver {
 
     final String symlinkTarget =
       isSymlink ? ( (SymlinkDestinationSupplier) entry.getResource() ).getSymlinkDestination() : null;
+    final long lastModified = entry.getResource().getLastModified();
+    final long size = entry.getResource().getSize();
 
     getLogger().debug( "adding entry " + vPath );
 
+    if ( !skipWriting && isFile && !isSymlink && !updating && size >= segmentThreshold ) {
+      ContentSupplier contents = new ContentSupplier() {
+        @Override public InputStream getContents() throws IOException {
+          return entry.getInputStream();
+        }
+      };
+      segmentedEntries.add( new SegmentedEntryWriter.Entry( vPath, contents, size, lastModified, entry.getMode() ) );
+      tasks.submit( 0, new Callable<Integer>() {
+        @Override public Integer call() throws Exception {
+          Path parent = zipfs.getPath( vPath ).getParent();
+          if ( parent != null && Files.notExists( parent ) ) {
+            Files.createDirectories( parent );
+          }
+          return 0;
+        }
+      } );
+      return;
+    }
+
     if ( !skipWriting ) {
-      futures.add( executorService.submit( new Callable<Integer>() {
+      final int bufferSize = isFile ? GovernedTasks.bufferSize( size ) : 0;
+      final long reserved = tasks.reserve( bufferSize + MemoryGovernor.ENTRY_OVERHEAD );
+      tasks.submit( reserved, new Callable<Integer>() {
         @Override public Integer call() throws Exception {
           Path path = zipfs.getPath( vPath );
 
@@ -145,6 +233,11 @@ public class ParallelZipArchiver extends ZipArchiver {
               Files.createDirectories( nf );
             }
 
+            if ( updating && isUptodate( path, lastModified, size ) ) {
+              // unchanged, zipfs copies the compressed bytes of the existing entry
+              return 0;
+            }
+
             InputStream inputStream;
             OutputStream outputStream = Files
               .newOutputStream( path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
@@ -157,7 +250,8 @@ public class ParallelZipArchiver extends ZipArchiver {
             }
 
             try {
-              ByteBuffer buf = ByteBuffer.allocateDirect( 1024 * 256 ); //256K
+              // heap buffer, so the memory budget accounts for it: direct memory is neither reserved nor promptly freed
+              ByteBuffer buf = ByteBuffer.allocate( bufferSize );
               ReadableByteChannel inChannel = Channels.newChannel( inputStream );
               WritableByteChannel outChannel = Channels.newChannel( outputStream );
               while ( inChannel.read( buf ) >= 0 || buf.position() != 0 ) {
@@ -169,13 +263,40 @@ public class ParallelZipArchiver extends ZipArchiver {
               inputStream.close();
               outputStream.close();
             }
+            if ( lastModified != PlexusIoResource.UNKNOWN_MODIFICATION_DATE ) {
+              Files.setLastModifiedTime( path, FileTime.fromMillis( lastModified ) );
+            }
           }
           return 0;
         }
-      } ) );
+      } );
     }
   }
 
+  private boolean isUptodate( Path path, long lastModified, long size ) throws IOException {
+    if ( lastModified == PlexusIoResource.UNKNOWN_MODIFICATION_DATE || Files.notExists( path ) ) {
+      return false;
+    }
+    BasicFileAttributes attrs = Files.readAttributes( path, BasicFileAttributes.class );
+    return attrs.isRegularFile() && attrs.size() == size
+      && Math.abs( attrs.lastModifiedTime().toMillis() - lastModified ) < ZIP_TIME_GRANULARITY;
+  }
+
+  private void removeStaleEntries() throws IOException {
+    List<String> names = new ArrayList<>( staleEntries );
+    // reverse order deletes children before their parent directories
+    Collections.sort( names, Collections.reverseOrder() );
+    for ( String name : names ) {
+      getLogger().debug( "removing entry " + name );
+      try {
+        Files.deleteIfExists( zipfs.getPath( name ) );
+      } catch ( DirectoryNotEmptyException e ) {
+        // still holds entries added by this build
+      }
+    }
+    staleEntries.clear();
+  }
+
   @Override protected boolean revert( StringBuffer messageBuffer ) {
     return true;
   }
@@ -193,18 +314,21 @@ public class ParallelZipArchiver extends ZipArchiver {
   @Override protected void close() throws IOException {
     if ( !executorService.isShutdown() ) {
       try {
-        // Make sure we catch any exceptions from parallel phase
-        for ( final Future<?> future : futures ) {
-          future.get();
+        tasks.awaitAll();
+        if ( updating ) {
+          removeStaleEntries();
+        }
+        zipfs.close();
+        if ( !segmentedEntries.isEmpty() ) {
+          getLogger().debug( "appending " + segmentedEntries.size() + " segmented entries" );
+          new SegmentedEntryWriter( executorService, memoryGovernor ).append( zipFile, segmentedEntries );
         }
-        futures = null;
         executorService.shutdown();
         executorService
           .awaitTermination( 1000 * 60L, TimeUnit.SECONDS ); // == Infinity. We really *must* wait for this to complete
+        getLogger().info( memoryGovernor.describePeak() );
       } catch ( InterruptedException e ) {
         throw new IOException( "Interrupted exception", e.getCause() );
-      } catch ( ExecutionException e ) {
-        throw new IOException( "Execution exception", e.getCause() );
       }
     }
     zipfs.close();
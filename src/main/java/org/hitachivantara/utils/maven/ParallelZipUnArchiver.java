@@ -21,13 +21,16 @@ import org.codehaus.plexus.archiver.UnArchiver;
 import org.codehaus.plexus.component.annotations.Component;
 import org.codehaus.plexus.components.io.fileselectors.FileInfo;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystem;
@@ -36,33 +39,40 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
 
 @Component( role = UnArchiver.class, hint = "zip" )
 public class ParallelZipUnArchiver extends AbstractParallelZipUnArchiver {
 
   private FileSystem zipfs;
+  private FileChannel archiveChannel;
   private ExecutorService executorService;
-  private List<Future<Integer>> futures = new ArrayList<>();
+  private GovernedTasks tasks;
+  private final MemoryGovernor memoryGovernor = MemoryGovernor.getShared().newAccount();
+
+  // bounds inflation to the number of cores when entries are extracted on virtual threads
+  private final Semaphore inflatePermits = new Semaphore( ParallelExecutors.getParallelism() );
 
   public ParallelZipUnArchiver() {
-    this.executorService = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+    this.executorService = ParallelExecutors.newIoBoundExecutor();
+    this.tasks = new GovernedTasks( executorService, memoryGovernor );
   }
 
   public ParallelZipUnArchiver( File sourceFile ) {
     super( sourceFile );
-    this.executorService = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+    this.executorService = ParallelExecutors.newIoBoundExecutor();
+    this.tasks = new GovernedTasks( executorService, memoryGovernor );
   }
 
   @Override protected void execute() throws ArchiverException {
@@ -70,24 +80,19 @@ public class ParallelZipUnArchiver extends AbstractParallelZipUnArchiver {
     File destDirectory = getDestDirectory();
     getLogger().info( "Using concurrent ZIP unpacking with Java NIO" );
     getLogger().debug( "Expanding " + zipFile + " into " + destDirectory );
+    getLogger().debug( "Extracting with " + ParallelExecutors.describe( executorService ) );
+    String fallbackWarning = ParallelExecutors.getFallbackWarning( executorService );
+    if ( fallbackWarning != null ) {
+      getLogger().warn( fallbackWarning );
+    }
 
     try {
-      zipfs = createZipFileSystem();
-      Iterable<Path> rootPaths = zipfs.getRootDirectories();
-      for ( final Path path : rootPaths ) {
-        Files.walkFileTree( path, new SimpleFileVisitor<Path>() {
-          @Override public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs ) throws IOException {
-            FileInfo fileInfo = new ZipEntryFileInfo( dir, path );
-            extractFile( fileInfo );
-            return FileVisitResult.CONTINUE;
-          }
-
-          @Override public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
-            FileInfo fileInfo = new ZipEntryFileInfo( file, path );
-            extractFile( fileInfo );
-            return FileVisitResult.CONTINUE;
-          }
-        } );
+      ExtractionCache cache = ExtractionCache.getConfigured();
+      String key = cache != null ? cache.getKey( zipFile, getFileSelectors() ) : null;
+      if ( key != null ) {
+        extractCached( cache, key, destDirectory.toPath() );
+      } else {
+        extractArchive( destDirectory.toPath() );
       }
     } catch ( IOException ioe ) {
       throw new ArchiverException( "Error while expanding " + zipFile.getAbsolutePath(), ioe );
@@ -95,14 +100,201 @@ public class ParallelZipUnArchiver extends AbstractParallelZipUnArchiver {
     close();
   }
 
+  private void extractArchive( Path targetDirectory ) throws IOException {
+    ZipIndex index = ZipIndex.load( getSourceFile() );
+    if ( index.isSupported() ) {
+      extractIndexed( index, 0, index.size(), targetDirectory );
+    } else {
+      getLogger().debug( "Unsupported entries in " + getSourceFile() + ", falling back to the zip file system" );
+      extractFileSystem( targetDirectory );
+    }
+  }
+
+  private void extractIndexed( ZipIndex index, int from, int to, Path targetDirectory ) throws IOException {
+    if ( archiveChannel == null ) {
+      archiveChannel = FileChannel.open( getSourceFile().toPath(), StandardOpenOption.READ );
+    }
+    for ( int i = from; i < to; i++ ) {
+      FileInfo fileInfo = new IndexedEntryFileInfo( index, i, archiveChannel, inflatePermits );
+      if ( hasSegments( index, i ) ) {
+        extractSegmented( fileInfo, index, i, targetDirectory );
+        continue;
+      }
+      extractFile( fileInfo, index.isDirectory( i ) ? 0 : index.getSize( i ), targetDirectory );
+    }
+  }
+
+  /**
+   * @return true if the entry has usable deflate restart points, anything else is inflated sequentially
+   */
+  private static boolean hasSegments( ZipIndex index, int i ) {
+    long[] segments = index.getSegments( i );
+    if ( segments == null || segments.length < 6 || index.getMethod( i ) != ZipIndex.DEFLATED ) {
+      return false;
+    }
+    for ( int s = 0; s < segments.length; s += 3 ) {
+      long compressedEnd = s + 3 < segments.length ? segments[ s + 3 ] : index.getCompressedSize( i );
+      long end = s + 3 < segments.length ? segments[ s + 4 ] : index.getSize( i );
+      if ( segments[ s ] < 0 || compressedEnd < segments[ s ] || segments[ s + 1 ] < 0 || end < segments[ s + 1 ]
+        || end - segments[ s + 1 ] > Integer.MAX_VALUE - 8 || compressedEnd - segments[ s ] > Integer.MAX_VALUE - 8 ) {
+        return false;
+      }
+    }
+    return segments[ 0 ] == 0 && segments[ 1 ] == 0;
+  }
+
+  /**
+   * Inflates the segments of a large entry in parallel, each one written at its offset in the target file.
+   */
+  private void extractSegmented( FileInfo fileInfo, ZipIndex index, int i, Path targetDirectory )
+    throws IOException {
+    if ( !isSelected( fileInfo ) ) {
+      return;
+    }
+    final String name = fileInfo.getName();
+    Path targetPath = resolveTarget( targetDirectory, name );
+    Files.createDirectories( targetPath.getParent() );
+
+    final long dataOffset = index.getDataOffset( archiveChannel, i );
+    final long[] segments = index.getSegments( i );
+    final int count = segments.length / 3;
+    Files.deleteIfExists( targetPath );
+    final FileChannel out = FileChannel.open( targetPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW );
+    // the last segment to finish closes the target
+    final AtomicInteger remaining = new AtomicInteger( count );
+    for ( int s = 0; s < count; s++ ) {
+      final int segment = s;
+      final long compressedStart = dataOffset + segments[ s * 3 ];
+      final long compressedEnd =
+        dataOffset + ( s + 1 < count ? segments[ ( s + 1 ) * 3 ] : index.getCompressedSize( i ) );
+      final long start = segments[ s * 3 + 1 ];
+      final long end = s + 1 < count ? segments[ ( s + 1 ) * 3 + 1 ] : index.getSize( i );
+      final long crc = segments[ s * 3 + 2 ];
+
+      long reserved;
+      try {
+        reserved = tasks.reserve( compressedEnd - compressedStart + end - start + MemoryGovernor.ENTRY_OVERHEAD );
+      } catch ( IOException e ) {
+        out.close();
+        throw e;
+      }
+      tasks.submit( reserved, new Callable<Integer>() {
+        @Override public Integer call() throws Exception {
+          try {
+            ByteBuffer compressed =
+              ZipIndex.read( archiveChannel, compressedStart, (int) ( compressedEnd - compressedStart ) );
+            byte[] data;
+            inflatePermits.acquire();
+            try {
+              data = DeflateSegments.inflate( compressed.array(), (int) ( end - start ) );
+            } finally {
+              inflatePermits.release();
+            }
+            CRC32 actual = new CRC32();
+            actual.update( data );
+            if ( actual.getValue() != crc ) {
+              throw new ZipException( "Invalid CRC in segment " + segment + " of " + name );
+            }
+            ByteBuffer buf = ByteBuffer.wrap( data );
+            while ( buf.hasRemaining() ) {
+              out.write( buf, start + buf.position() );
+            }
+            return 0;
+          } finally {
+            if ( remaining.decrementAndGet() == 0 ) {
+              out.close();
+            }
+          }
+        }
+      } );
+    }
+  }
+
+  private void extractFileSystem( final Path targetDirectory ) throws IOException {
+    zipfs = createZipFileSystem();
+    Iterable<Path> rootPaths = zipfs.getRootDirectories();
+    for ( final Path path : rootPaths ) {
+      extractFileSystem( path, path, targetDirectory );
+    }
+  }
+
+  private void extractFileSystem( Path start, final Path root, final Path targetDirectory ) throws IOException {
+    Files.walkFileTree( start, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs ) throws IOException {
+        FileInfo fileInfo = new ZipEntryFileInfo( dir, root, inflatePermits );
+        extractFile( fileInfo, 0, targetDirectory );
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+        FileInfo fileInfo = new ZipEntryFileInfo( file, root, inflatePermits );
+        extractFile( fileInfo, attrs.size(), targetDirectory );
+        return FileVisitResult.CONTINUE;
+      }
+    } );
+  }
+
+  private void extractCached( ExtractionCache cache, String key, Path destDirectory ) throws IOException {
+    Closeable lock = cache.lock( key );
+    try {
+      if ( !cache.isComplete( key ) ) {
+        getLogger().debug( "Populating extraction cache " + cache.getEntries( key ) );
+        Path staging = cache.newStaging( key );
+        extractArchive( staging );
+        tasks.awaitAll();
+        cache.commit( key, staging );
+      } else {
+        getLogger().debug( "Using extraction cache " + cache.getEntries( key ) );
+      }
+    } finally {
+      lock.close();
+    }
+    linkTree( cache.getEntries( key ), destDirectory );
+  }
+
+  private void linkTree( final Path source, final Path destDirectory ) throws IOException {
+    Files.walkFileTree( source, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs ) throws IOException {
+        Files.createDirectories( destDirectory.resolve( source.relativize( dir ).toString() ) );
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override public FileVisitResult visitFile( final Path file, BasicFileAttributes attrs ) throws IOException {
+        final Path target = destDirectory.resolve( source.relativize( file ).toString() );
+        tasks.submit( 0, new Callable<Integer>() {
+          @Override public Integer call() throws Exception {
+            Files.deleteIfExists( target );
+            try {
+              Files.createLink( target, file );
+            } catch ( IOException | UnsupportedOperationException e ) {
+              // hard links can't cross file systems, a copy is private and can stay writable
+              Files.copy( file, target, StandardCopyOption.COPY_ATTRIBUTES );
+              target.toFile().setWritable( true );
+            }
+            return 0;
+          }
+        } );
+        return FileVisitResult.CONTINUE;
+      }
+    } );
+  }
+
   @Override protected void execute( String path, File outputDirectory ) throws ArchiverException {
     File zipFile = getSourceFile();
 
     try {
+      ZipIndex index = ZipIndex.load( zipFile );
+      if ( index.isSupported() ) {
+        extractIndexed( index, index.lowerBound( path ), index.prefixEnd( path ), outputDirectory.toPath() );
+        close();
+        return;
+      }
       zipfs = createZipFileSystem();
-      Path p = zipfs.getPath( path );
-      FileInfo fileInfo = new ZipEntryFileInfo( p, outputDirectory.toPath() );
-      extractFile( fileInfo );
+      Path root = zipfs.getPath( "/" );
+      Path p = root.resolve( path );
+      if ( Files.exists( p ) ) {
+        extractFileSystem( p, root, outputDirectory.toPath() );
+      }
     } catch ( IOException e ) {
       throw new ArchiverException( "Error while expanding " + zipFile.getAbsolutePath(), e );
     }
@@ -112,61 +304,82 @@ public class ParallelZipUnArchiver extends AbstractParallelZipUnArchiver {
   private void close() throws ArchiverException {
     try {
       if ( !executorService.isShutdown() ) {
-        // Make sure we catch any exceptions from parallel phase
-        for ( final Future<?> future : futures ) {
-          future.get();
-        }
+        tasks.awaitAll();
       }
       executorService.shutdown();
       executorService
         .awaitTermination( 1000 * 60L, TimeUnit.SECONDS ); // == Infinity. We really *must* wait for this to complete
-      futures = null;
-      zipfs.close();
+      if ( zipfs != null ) {
+        zipfs.close();
+      }
+      if ( archiveChannel != null ) {
+        archiveChannel.close();
+      }
+      getLogger().info( memoryGovernor.describePeak() );
     } catch ( InterruptedException e ) {
       throw new ArchiverException( "Interrupted exception", e.getCause() );
-    } catch ( ExecutionException e ) {
-      throw new ArchiverException( "Execution exception", e.getCause() );
     } catch ( IOException e ) {
       throw new ArchiverException( "IO exception", e.getCause() );
     }
   }
 
-  private void extractFile( final FileInfo fileInfo ) {
-    futures.add( executorService.submit( new Callable<Integer>() {
+  private void extractFile( final FileInfo fileInfo, long size, final Path targetDirectory ) throws IOException {
+    final int bufferSize = GovernedTasks.bufferSize( size );
+    final long reserved = tasks.reserve( bufferSize + MemoryGovernor.ENTRY_OVERHEAD );
+    tasks.submit( reserved, new Callable<Integer>() {
       @Override public Integer call() throws Exception {
-        if (!isSelected( fileInfo )) {
-          return 0;
-        }
+        return extract( fileInfo, bufferSize, targetDirectory );
+      }
+    } );
+  }
 
-        Path targetPath = getDestDirectory().toPath().resolve( fileInfo.getName() );
-        if ( fileInfo.isDirectory() ) {
-          Files.createDirectories( targetPath );
-          return 0;
-        }
+  private int extract( FileInfo fileInfo, int bufferSize, Path targetDirectory ) throws Exception {
+    if ( !isSelected( fileInfo ) ) {
+      return 0;
+    }
 
-        Files.createDirectories( targetPath.getParent() );
-        InputStream inputStream = fileInfo.getContents();
-        OutputStream outputStream = Files
-          .newOutputStream( targetPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
-            StandardOpenOption.TRUNCATE_EXISTING );
-
-        try {
-          ByteBuffer buf = ByteBuffer.allocateDirect( 1024 * 254 ); //254K
-          ReadableByteChannel inChannel = Channels.newChannel( inputStream );
-          WritableByteChannel outChannel = Channels.newChannel( outputStream );
-
-          while ( inChannel.read( buf ) >= 0 || buf.position() != 0 ) {
-            buf.flip();
-            outChannel.write( buf );
-            buf.compact();
-          }
-        } finally {
-          inputStream.close();
-          outputStream.close();
-        }
-        return 0;
+    Path targetPath = resolveTarget( targetDirectory, fileInfo.getName() );
+    if ( fileInfo.isDirectory() ) {
+      Files.createDirectories( targetPath );
+      return 0;
+    }
+
+    Files.createDirectories( targetPath.getParent() );
+    // replace rather than truncate, the file may be a hard link into the extraction cache
+    Files.deleteIfExists( targetPath );
+    InputStream inputStream = fileInfo.getContents();
+    OutputStream outputStream;
+    try {
+      outputStream = Files.newOutputStream( targetPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW );
+    } catch ( IOException e ) {
+      inputStream.close();
+      throw e;
+    }
+
+    try {
+      // see ParallelZipArchiver, the budget only covers heap buffers
+      ByteBuffer buf = ByteBuffer.allocate( bufferSize );
+      ReadableByteChannel inChannel = Channels.newChannel( inputStream );
+      WritableByteChannel outChannel = Channels.newChannel( outputStream );
+
+      while ( inChannel.read( buf ) >= 0 || buf.position() != 0 ) {
+        buf.flip();
+        outChannel.write( buf );
+        buf.compact();
       }
-    } ) );
+    } finally {
+      inputStream.close();
+      outputStream.close();
+    }
+    return 0;
+  }
+
+  private static Path resolveTarget( Path targetDirectory, String name ) {
+    Path targetPath = targetDirectory.resolve( name ).normalize();
+    if ( !targetPath.startsWith( targetDirectory.normalize() ) ) {
+      throw new ArchiverException( "Entry " + name + " is outside of the target directory" );
+    }
+    return targetPath;
   }
 
   private FileSystem createZipFileSystem() throws IOException {
@@ -178,13 +391,53 @@ public class ParallelZipUnArchiver extends AbstractParallelZipUnArchiver {
     return FileSystems.newFileSystem( zipURI, env );
   }
 
+  private static class IndexedEntryFileInfo implements FileInfo {
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFLNK = 0120000;
+
+    private final ZipIndex index;
+    private final int position;
+    private final FileChannel channel;
+    private final Semaphore inflatePermits;
+
+    public IndexedEntryFileInfo( ZipIndex index, int position, FileChannel channel, Semaphore inflatePermits ) {
+      this.index = index;
+      this.position = position;
+      this.channel = channel;
+      this.inflatePermits = inflatePermits;
+    }
+
+    @Override public String getName() {
+      String name = index.getName( position );
+      return name.endsWith( "/" ) ? name.substring( 0, name.length() - 1 ) : name;
+    }
+
+    @Override public InputStream getContents() throws IOException {
+      return index.openEntry( channel, position, inflatePermits );
+    }
+
+    @Override public boolean isFile() {
+      return !index.isDirectory( position );
+    }
+
+    @Override public boolean isDirectory() {
+      return index.isDirectory( position );
+    }
+
+    @Override public boolean isSymbolicLink() {
+      return ( index.getMode( position ) & S_IFMT ) == S_IFLNK;
+    }
+  }
+
   private static class ZipEntryFileInfo implements FileInfo {
     private Path zipEntry;
     private Path rootPath;
+    private Semaphore inflatePermits;
 
-    public ZipEntryFileInfo(Path zipEntry, Path root) {
+    public ZipEntryFileInfo(Path zipEntry, Path root, Semaphore inflatePermits) {
       this.zipEntry = zipEntry;
       this.rootPath = root;
+      this.inflatePermits = inflatePermits;
     }
 
     @Override public String getName() {
@@ -193,7 +446,7 @@ public class ParallelZipUnArchiver extends AbstractParallelZipUnArchiver {
     }
 
     @Override public InputStream getContents() throws IOException {
-      return Files.newInputStream( zipEntry, StandardOpenOption.READ );
+      return new PermitInputStream( Files.newInputStream( zipEntry, StandardOpenOption.READ ), inflatePermits );
     }
 
     @Override public boolean isFile() {
@@ -208,4 +461,34 @@ public class ParallelZipUnArchiver extends AbstractParallelZipUnArchiver {
       return Files.isSymbolicLink( zipEntry );
     }
   }
+
+  /**
+   * Holds a permit around each read of a zip file system stream, which inflates and reads the archive in one call.
+   */
+  private static class PermitInputStream extends FilterInputStream {
+    private final Semaphore permits;
+
+    PermitInputStream( InputStream in, Semaphore permits ) {
+      super( in );
+      this.permits = permits;
+    }
+
+    @Override public int read() throws IOException {
+      permits.acquireUninterruptibly();
+      try {
+        return super.read();
+      } finally {
+        permits.release();
+      }
+    }
+
+    @Override public int read( byte[] b, int off, int len ) throws IOException {
+      permits.acquireUninterruptibly();
+      try {
+        return super.read( b, off, len );
+      } finally {
+        permits.release();
+      }
+    }
+  }
 }
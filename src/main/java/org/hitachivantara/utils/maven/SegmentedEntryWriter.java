@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import org.codehaus.plexus.components.io.functions.ContentSupplier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipException;
+
+/**
+ * Appends large entries to a finished zip, deflating their segments in parallel.
+ * <p>
+ * The zip file system can neither flush the deflater nor write extra fields, so large files are kept out of it and
+ * written here once it is closed: the existing central directory is read, overwritten by the new local entries and
+ * written again after them together with the records of the new entries and a new end of central directory.
+ *
+ * @see DeflateSegments
+ */
+final class SegmentedEntryWriter {
+
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int CEN_SIG = 0x02014b50;
+  private static final int EOCD_SIG = 0x06054b50;
+  private static final int ZIP64_EOCD_SIG = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+  private static final int FLAG_UTF8 = 0x0800;
+  private static final int VERSION = 20;
+  private static final int VERSION_ZIP64 = 45;
+  private static final int UNIX_HOST = 3;
+  private static final int S_IFREG = 0100000;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  // deflate may slightly expand incompressible data, switch to zip64 sizes before that could overflow
+  private static final long ZIP64_SIZE_THRESHOLD = ZIP64_MAGIC - 16 * 1024 * 1024;
+
+  private final ExecutorService executorService;
+  private final MemoryGovernor memoryGovernor;
+
+  SegmentedEntryWriter( ExecutorService executorService, MemoryGovernor memoryGovernor ) {
+    this.executorService = executorService;
+    this.memoryGovernor = memoryGovernor;
+  }
+
+  void append( File zipFile, List<Entry> entries ) throws IOException {
+    FileChannel channel = FileChannel.open( zipFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE );
+    try {
+      ZipIndex.CentralDirectory directory = ZipIndex.locate( channel );
+      ByteBuffer existing = ZipIndex.read( channel, directory.offset, directory.size );
+
+      long position = directory.offset;
+      ByteArrayOutputStream cen = new ByteArrayOutputStream();
+      for ( Entry entry : entries ) {
+        position = writeEntry( channel, position, entry, cen );
+      }
+
+      long cenOffset = position;
+      position += write( channel, position, existing );
+      position += write( channel, position, ByteBuffer.wrap( cen.toByteArray() ) );
+      position += writeEnd( channel, position, cenOffset, position - cenOffset, directory.count + entries.size() );
+      channel.truncate( position );
+    } finally {
+      channel.close();
+    }
+  }
+
+  private long writeEntry( FileChannel channel, long offset, Entry entry, ByteArrayOutputStream cen )
+    throws IOException {
+    byte[] name = entry.name.getBytes( StandardCharsets.UTF_8 );
+    // read sequentially through the content supplier so that filtering and other transformations apply, the size is
+    // only an estimate for them and the actual one is counted
+    PushbackInputStream in = new PushbackInputStream( entry.contents.getContents(), 1 );
+    try {
+      boolean zip64 = entry.size >= ZIP64_SIZE_THRESHOLD;
+      long dosTime = toDosTime( entry.lastModified );
+      int headerLength = 30 + name.length + ( zip64 ? 20 : 0 );
+      long dataOffset = offset + headerLength;
+
+      int segmentSize = DeflateSegments.getSegmentSize( entry.size );
+      SegmentSink sink = new SegmentSink( channel, dataOffset );
+
+      // deflate up to a window of segments in parallel, writing them in order. Each reservation is released once its
+      // segment is written, and the producer only blocks on the budget while it holds none of its own
+      int window = ParallelExecutors.getParallelism();
+      Deque<PendingSegment> pending = new ArrayDeque<>();
+      long size = 0;
+      try {
+        boolean last = false;
+        while ( !last ) {
+          long bytes = 2L * segmentSize + MemoryGovernor.ENTRY_OVERHEAD;
+          long reserved = -1;
+          while ( reserved < 0 ) {
+            if ( pending.isEmpty() ) {
+              reserved = memoryGovernor.reserve( bytes );
+            } else if ( pending.size() >= window || ( reserved = memoryGovernor.tryReserve( bytes ) ) < 0 ) {
+              sink.write( pending.removeFirst() );
+            }
+          }
+          PendingSegment segment = new PendingSegment( size, reserved );
+          pending.addLast( segment );
+
+          final byte[] data = new byte[ segmentSize ];
+          final int length = readFully( in, data );
+          last = length < segmentSize || isEnd( in );
+          size += length;
+
+          final boolean finish = last;
+          segment.result = executorService.submit( new Callable<DeflateSegments.Segment>() {
+            @Override public DeflateSegments.Segment call() throws Exception {
+              return DeflateSegments.deflate( data, length, finish );
+            }
+          } );
+        }
+        while ( !pending.isEmpty() ) {
+          sink.write( pending.removeFirst() );
+        }
+      } catch ( InterruptedException e ) {
+        throw new IOException( "Interrupted exception", e );
+      } catch ( ExecutionException e ) {
+        throw new IOException( "Execution exception", e.getCause() );
+      } finally {
+        for ( PendingSegment segment : pending ) {
+          memoryGovernor.release( segment.reserved );
+        }
+      }
+      if ( !zip64 && size >= ZIP64_SIZE_THRESHOLD ) {
+        throw new ZipException( entry.name + " is larger than its announced " + entry.size + " bytes" );
+      }
+      long compressedSize = sink.compressedSize;
+      long crc = sink.crc;
+      long[] segments = Arrays.copyOf( sink.segments, sink.written * 3 );
+
+      ByteBuffer header = ByteBuffer.allocate( headerLength ).order( ByteOrder.LITTLE_ENDIAN );
+      header.putInt( LOC_SIG );
+      header.putShort( (short) ( zip64 ? VERSION_ZIP64 : VERSION ) );
+      header.putShort( (short) FLAG_UTF8 );
+      header.putShort( (short) ZipIndex.DEFLATED );
+      header.putInt( (int) dosTime );
+      header.putInt( (int) crc );
+      header.putInt( (int) ( zip64 ? ZIP64_MAGIC : compressedSize ) );
+      header.putInt( (int) ( zip64 ? ZIP64_MAGIC : size ) );
+      header.putShort( (short) name.length );
+      header.putShort( (short) ( zip64 ? 20 : 0 ) );
+      header.put( name );
+      if ( zip64 ) {
+        header.putShort( (short) ZIP64_EXTRA_ID );
+        header.putShort( (short) 16 );
+        header.putLong( size );
+        header.putLong( compressedSize );
+      }
+      header.flip();
+      write( channel, offset, header );
+
+      writeCentralRecord( cen, entry, name, dosTime, crc, compressedSize, size, zip64, offset, segments );
+      return dataOffset + compressedSize;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the number of bytes read, less than {@code buf.length} only at the end of the stream
+   */
+  private static int readFully( InputStream in, byte[] buf ) throws IOException {
+    int length = 0;
+    while ( length < buf.length ) {
+      int n = in.read( buf, length, buf.length - length );
+      if ( n < 0 ) {
+        break;
+      }
+      length += n;
+    }
+    return length;
+  }
+
+  private static boolean isEnd( PushbackInputStream in ) throws IOException {
+    int b = in.read();
+    if ( b < 0 ) {
+      return true;
+    }
+    in.unread( b );
+    return false;
+  }
+
+  private static void writeCentralRecord( ByteArrayOutputStream cen, Entry entry, byte[] name, long dosTime,
+                                          long crc, long compressedSize, long size, boolean zip64Sizes,
+                                          long offset, long[] segments ) throws ZipException {
+    boolean zip64Offset = offset >= ZIP64_MAGIC;
+    int zip64Length = ( zip64Sizes ? 16 : 0 ) + ( zip64Offset ? 8 : 0 );
+    byte[] segmentExtra = DeflateSegments.encodeExtra( segments );
+    int extraLength = ( zip64Length > 0 ? 4 + zip64Length : 0 ) + segmentExtra.length;
+    int version = zip64Length > 0 ? VERSION_ZIP64 : VERSION;
+    if ( extraLength > DeflateSegments.MAX_EXTRA_LENGTH ) {
+      throw new ZipException( "Extra fields of " + entry.name + " exceed " + DeflateSegments.MAX_EXTRA_LENGTH
+        + " bytes" );
+    }
+
+    ByteBuffer record = ByteBuffer.allocate( 46 + name.length + extraLength ).order( ByteOrder.LITTLE_ENDIAN );
+    record.putInt( CEN_SIG );
+    record.putShort( (short) ( UNIX_HOST << 8 | version ) );
+    record.putShort( (short) version );
+    record.putShort( (short) FLAG_UTF8 );
+    record.putShort( (short) ZipIndex.DEFLATED );
+    record.putInt( (int) dosTime );
+    record.putInt( (int) crc );
+    record.putInt( (int) ( zip64Sizes ? ZIP64_MAGIC : compressedSize ) );
+    record.putInt( (int) ( zip64Sizes ? ZIP64_MAGIC : size ) );
+    record.putShort( (short) name.length );
+    record.putShort( (short) extraLength );
+    record.putShort( (short) 0 ); // comment
+    record.putShort( (short) 0 ); // disk
+    record.putShort( (short) 0 ); // internal attributes
+    record.putInt( ( S_IFREG | ( entry.mode & 07777 ) ) << 16 );
+    record.putInt( (int) ( zip64Offset ? ZIP64_MAGIC : offset ) );
+    record.put( name );
+    if ( zip64Length > 0 ) {
+      record.putShort( (short) ZIP64_EXTRA_ID );
+      record.putShort( (short) zip64Length );
+      if ( zip64Sizes ) {
+        record.putLong( size );
+        record.putLong( compressedSize );
+      }
+      if ( zip64Offset ) {
+        record.putLong( offset );
+      }
+    }
+    record.put( segmentExtra );
+    cen.write( record.array(), 0, record.position() );
+  }
+
+  private static long writeEnd( FileChannel channel, long position, long cenOffset, long cenSize, long count )
+    throws IOException {
+    boolean zip64 = count >= 0xFFFF || cenOffset >= ZIP64_MAGIC || cenSize >= ZIP64_MAGIC;
+    ByteBuffer end = ByteBuffer.allocate( ( zip64 ? 56 + 20 : 0 ) + 22 ).order( ByteOrder.LITTLE_ENDIAN );
+    if ( zip64 ) {
+      end.putInt( ZIP64_EOCD_SIG );
+      end.putLong( 44 );
+      end.putShort( (short) ( UNIX_HOST << 8 | VERSION_ZIP64 ) );
+      end.putShort( (short) VERSION_ZIP64 );
+      end.putInt( 0 );
+      end.putInt( 0 );
+      end.putLong( count );
+      end.putLong( count );
+      end.putLong( cenSize );
+      end.putLong( cenOffset );
+
+      end.putInt( ZIP64_LOCATOR_SIG );
+      end.putInt( 0 );
+      end.putLong( position );
+      end.putInt( 1 );
+    }
+    end.putInt( EOCD_SIG );
+    end.putShort( (short) 0 );
+    end.putShort( (short) 0 );
+    end.putShort( (short) Math.min( count, 0xFFFF ) );
+    end.putShort( (short) Math.min( count, 0xFFFF ) );
+    end.putInt( (int) Math.min( cenSize, ZIP64_MAGIC ) );
+    end.putInt( (int) Math.min( cenOffset, ZIP64_MAGIC ) );
+    end.putShort( (short) 0 );
+    end.flip();
+    return write( channel, position, end );
+  }
+
+  private static int write( FileChannel channel, long position, ByteBuffer buf ) throws IOException {
+    int length = buf.remaining();
+    while ( buf.hasRemaining() ) {
+      int n = channel.write( buf, position + length - buf.remaining() );
+      if ( n < 0 ) {
+        throw new EOFException();
+      }
+    }
+    return length;
+  }
+
+  private static long toDosTime( long time ) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis( time );
+    int year = calendar.get( Calendar.YEAR );
+    if ( year < 1980 ) {
+      return ( 1 << 21 ) | ( 1 << 16 );
+    }
+    return ( (long) ( year - 1980 ) << 25 ) | ( ( calendar.get( Calendar.MONTH ) + 1 ) << 21 )
+      | ( calendar.get( Calendar.DAY_OF_MONTH ) << 16 ) | ( calendar.get( Calendar.HOUR_OF_DAY ) << 11 )
+      | ( calendar.get( Calendar.MINUTE ) << 5 ) | ( calendar.get( Calendar.SECOND ) >> 1 );
+  }
+
+  /**
+   * A segment being deflated, holding its reservation until it is written.
+   */
+  private static class PendingSegment {
+    final long start;
+    final long reserved;
+    Future<DeflateSegments.Segment> result;
+
+    PendingSegment( long start, long reserved ) {
+      this.start = start;
+      this.reserved = reserved;
+    }
+  }
+
+  /**
+   * Writes the deflated segments of one entry in order, recording their restart points and combining their crc.
+   */
+  private class SegmentSink {
+    final FileChannel channel;
+    final long dataOffset;
+    long[] segments = new long[ 3 * 64 ];
+    long compressedSize;
+    long crc;
+    int written;
+
+    SegmentSink( FileChannel channel, long dataOffset ) {
+      this.channel = channel;
+      this.dataOffset = dataOffset;
+    }
+
+    void write( PendingSegment pending ) throws IOException, InterruptedException, ExecutionException {
+      try {
+        DeflateSegments.Segment segment = pending.result.get();
+        int s = written++;
+        if ( segments.length < written * 3 ) {
+          segments = Arrays.copyOf( segments, segments.length * 2 );
+        }
+        segments[ s * 3 ] = compressedSize;
+        segments[ s * 3 + 1 ] = pending.start;
+        segments[ s * 3 + 2 ] = segment.crc;
+        compressedSize += SegmentedEntryWriter.write( channel, dataOffset + compressedSize,
+          ByteBuffer.wrap( segment.compressed ) );
+        crc = s == 0 ? segment.crc : DeflateSegments.combineCrc( crc, segment.crc, segment.length );
+      } finally {
+        memoryGovernor.release( pending.reserved );
+      }
+    }
+  }
+
+  static class Entry {
+    final String name;
+    final ContentSupplier contents;
+    final long size;
+    final long lastModified;
+    final int mode;
+
+    /**
+     * @param size the expected size of {@code contents}, used to pick the segment size and zip64 headers
+     */
+    Entry( String name, ContentSupplier contents, long size, long lastModified, int mode ) {
+      this.name = name;
+      this.contents = contents;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.mode = mode;
+    }
+  }
+}
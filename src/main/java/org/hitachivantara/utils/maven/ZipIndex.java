@@ -0,0 +1,639 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Compact, name sorted copy of a zip central directory.
+ * <p>
+ * Indexes are kept in memory for the most recently used archives and, when the {@value #PERSIST_PROPERTY} system
+ * property is true, in a {@value #SIDECAR_SUFFIX} file next to the archive. Either is only reused while the
+ * archive size, modification time and end of central directory record are unchanged.
+ */
+final class ZipIndex {
+
+  static final String PERSIST_PROPERTY = "parallel-zip.index.persist";
+  static final String SIDECAR_SUFFIX = ".idx";
+
+  static final int STORED = 0;
+  static final int DEFLATED = 8;
+
+  private static final int SIDECAR_MAGIC = 0x505a4932; // PZI2
+  private static final int CACHED_INDEXES = 16;
+
+  private static final int EOCD_SIG = 0x06054b50;
+  private static final int EOCD_MIN_LENGTH = 22;
+  private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+  private static final int ZIP64_LOCATOR_LENGTH = 20;
+  private static final int ZIP64_EOCD_SIG = 0x06064b50;
+  private static final int CEN_SIG = 0x02014b50;
+  private static final int CEN_HEADER_LENGTH = 46;
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int LOC_HEADER_LENGTH = 30;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+  private static final int FLAG_ENCRYPTED = 0x0001;
+  private static final int UNIX_HOST = 3;
+
+  private static final Map<String, ZipIndex> INDEXES = new LinkedHashMap<String, ZipIndex>( 16, 0.75f, true ) {
+    @Override protected boolean removeEldestEntry( Map.Entry<String, ZipIndex> eldest ) {
+      return size() > CACHED_INDEXES;
+    }
+  };
+
+  private final long archiveSize;
+  private final long archiveLastModified;
+  private final long eocdHash;
+
+  private final String[] names;
+  private final long[] offsets;
+  private final long[] compressedSizes;
+  private final long[] sizes;
+  private final int[] crcs;
+  private final int[] modes;
+  private final int[] methods;
+  private final int[] flags;
+  private final long[][] segments;
+
+  private ZipIndex( long archiveSize, long archiveLastModified, long eocdHash, int count ) {
+    this.archiveSize = archiveSize;
+    this.archiveLastModified = archiveLastModified;
+    this.eocdHash = eocdHash;
+    this.names = new String[ count ];
+    this.offsets = new long[ count ];
+    this.compressedSizes = new long[ count ];
+    this.sizes = new long[ count ];
+    this.crcs = new int[ count ];
+    this.modes = new int[ count ];
+    this.methods = new int[ count ];
+    this.flags = new int[ count ];
+    this.segments = new long[ count ][];
+  }
+
+  /**
+   * Returns the index of {@code archive}, from memory or its sidecar when still valid, parsing the central
+   * directory otherwise.
+   */
+  static ZipIndex load( File archive ) throws IOException {
+    String key = archive.getCanonicalPath();
+    Path path = archive.toPath();
+    FileChannel channel = FileChannel.open( path, StandardOpenOption.READ );
+    try {
+      long size = channel.size();
+      long lastModified = archive.lastModified();
+      ByteBuffer eocd = readEndRecord( channel );
+      long hash = hash( eocd );
+
+      ZipIndex index;
+      synchronized ( INDEXES ) {
+        index = INDEXES.get( key );
+      }
+      if ( index != null && index.matches( size, lastModified, hash ) ) {
+        return index;
+      }
+
+      boolean persist = Boolean.getBoolean( PERSIST_PROPERTY );
+      Path sidecar = getSidecar( archive );
+      index = persist ? readSidecar( sidecar, size, lastModified, hash ) : null;
+      if ( index == null ) {
+        index = parse( channel, eocd, size, lastModified, hash );
+        if ( persist ) {
+          writeSidecar( index, sidecar );
+        }
+      }
+      synchronized ( INDEXES ) {
+        INDEXES.put( key, index );
+      }
+      return index;
+    } finally {
+      channel.close();
+    }
+  }
+
+  static Path getSidecar( File archive ) {
+    return archive.toPath().resolveSibling( archive.getName() + SIDECAR_SUFFIX );
+  }
+
+  int size() {
+    return names.length;
+  }
+
+  String getName( int i ) {
+    return names[ i ];
+  }
+
+  boolean isDirectory( int i ) {
+    return names[ i ].endsWith( "/" );
+  }
+
+  long getOffset( int i ) {
+    return offsets[ i ];
+  }
+
+  long getCompressedSize( int i ) {
+    return compressedSizes[ i ];
+  }
+
+  long getSize( int i ) {
+    return sizes[ i ];
+  }
+
+  int getCrc( int i ) {
+    return crcs[ i ];
+  }
+
+  /**
+   * @return the unix mode of the entry, 0 when the archive was not created on unix
+   */
+  int getMode( int i ) {
+    return modes[ i ];
+  }
+
+  int getMethod( int i ) {
+    return methods[ i ];
+  }
+
+  /**
+   * @return the deflate restart points of the entry as (compressed offset, uncompressed offset, crc) triples, or null
+   * @see DeflateSegments
+   */
+  long[] getSegments( int i ) {
+    return segments[ i ];
+  }
+
+  /**
+   * @return true if every entry can be read by {@link #openEntry(FileChannel, int)}
+   */
+  boolean isSupported() {
+    for ( int i = 0; i < names.length; i++ ) {
+      if ( ( flags[ i ] & FLAG_ENCRYPTED ) != 0 || ( methods[ i ] != STORED && methods[ i ] != DEFLATED ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the position of the entry named {@code name}, or -1
+   */
+  int find( String name ) {
+    int i = lowerBound( name );
+    return i < names.length && names[ i ].equals( name ) ? i : -1;
+  }
+
+  /**
+   * @return the position of the first entry whose name is not less than {@code name}
+   */
+  int lowerBound( String name ) {
+    int low = 0;
+    int high = names.length;
+    while ( low < high ) {
+      int mid = ( low + high ) >>> 1;
+      if ( names[ mid ].compareTo( name ) < 0 ) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the end (exclusive) of the run of entries starting at {@code lowerBound( prefix )} whose name starts
+   * with {@code prefix}
+   */
+  int prefixEnd( String prefix ) {
+    int i = lowerBound( prefix );
+    while ( i < names.length && names[ i ].startsWith( prefix ) ) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * @return the offset of the entry data, right after its local header
+   */
+  long getDataOffset( FileChannel channel, int i ) throws IOException {
+    ByteBuffer header = read( channel, offsets[ i ], LOC_HEADER_LENGTH );
+    if ( header.getInt( 0 ) != LOC_SIG ) {
+      throw new ZipException( "Invalid local header for " + names[ i ] );
+    }
+    return offsets[ i ] + LOC_HEADER_LENGTH + u16( header, 26 ) + u16( header, 28 );
+  }
+
+  /**
+   * Opens the uncompressed content of an entry, reading {@code channel} with positional reads so that entries can
+   * be read concurrently.
+   */
+  InputStream openEntry( FileChannel channel, int i ) throws IOException {
+    return openEntry( channel, i, null );
+  }
+
+  /**
+   * Same as {@link #openEntry(FileChannel, int)}, holding one of {@code inflatePermits} while inflating but not
+   * while reading the archive.
+   */
+  InputStream openEntry( FileChannel channel, int i, Semaphore inflatePermits ) throws IOException {
+    long start = getDataOffset( channel, i );
+    InputStream raw = new ChannelInputStream( channel, start, start + compressedSizes[ i ] );
+    return methods[ i ] == DEFLATED ? new EntryInflaterInputStream( raw, inflatePermits ) : raw;
+  }
+
+  private boolean matches( long size, long lastModified, long hash ) {
+    return archiveSize == size && archiveLastModified == lastModified && eocdHash == hash;
+  }
+
+  private static long hash( ByteBuffer eocd ) {
+    CRC32 crc = new CRC32();
+    crc.update( eocd.array(), eocd.arrayOffset(), eocd.limit() );
+    return crc.getValue();
+  }
+
+  private static ByteBuffer readEndRecord( FileChannel channel ) throws IOException {
+    long size = channel.size();
+    int tailLength = (int) Math.min( size, EOCD_MIN_LENGTH + 0xFFFF );
+    ByteBuffer tail = read( channel, size - tailLength, tailLength );
+    for ( int pos = tailLength - EOCD_MIN_LENGTH; pos >= 0; pos-- ) {
+      if ( tail.getInt( pos ) == EOCD_SIG
+        && pos + EOCD_MIN_LENGTH + u16( tail, pos + 20 ) == tailLength ) {
+        // the record runs to the end of the file, so its offset is size - limit
+        return ByteBuffer.wrap( Arrays.copyOfRange( tail.array(), pos, tailLength ) )
+          .order( ByteOrder.LITTLE_ENDIAN );
+      }
+    }
+    throw new ZipException( "End of central directory not found" );
+  }
+
+  /**
+   * @return the location of the central directory of the archive open on {@code channel}
+   */
+  static CentralDirectory locate( FileChannel channel ) throws IOException {
+    return locate( channel, readEndRecord( channel ) );
+  }
+
+  private static CentralDirectory locate( FileChannel channel, ByteBuffer eocd ) throws IOException {
+    long eocdOffset = channel.size() - eocd.limit();
+    long count = u16( eocd, 10 );
+    long cenSize = u32( eocd, 12 );
+    long cenOffset = u32( eocd, 16 );
+    if ( count == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL ) {
+      ByteBuffer locator = read( channel, eocdOffset - ZIP64_LOCATOR_LENGTH, ZIP64_LOCATOR_LENGTH );
+      if ( locator.getInt( 0 ) != ZIP64_LOCATOR_SIG ) {
+        throw new ZipException( "Zip64 end of central directory locator not found" );
+      }
+      ByteBuffer zip64 = read( channel, locator.getLong( 8 ), 56 );
+      if ( zip64.getInt( 0 ) != ZIP64_EOCD_SIG ) {
+        throw new ZipException( "Zip64 end of central directory not found" );
+      }
+      count = zip64.getLong( 32 );
+      cenSize = zip64.getLong( 40 );
+      cenOffset = zip64.getLong( 48 );
+    }
+    if ( cenSize > Integer.MAX_VALUE || count > Integer.MAX_VALUE ) {
+      throw new ZipException( "Central directory too large" );
+    }
+    return new CentralDirectory( cenOffset, (int) cenSize, (int) count );
+  }
+
+  private static ZipIndex parse( FileChannel channel, ByteBuffer eocd, long size, long lastModified, long hash )
+    throws IOException {
+    CentralDirectory directory = locate( channel, eocd );
+    ByteBuffer cen = read( channel, directory.offset, directory.size );
+    final String[] names = new String[ directory.count ];
+    long[] offsets = new long[ names.length ];
+    long[] compressedSizes = new long[ names.length ];
+    long[] sizes = new long[ names.length ];
+    int[] crcs = new int[ names.length ];
+    int[] modes = new int[ names.length ];
+    int[] methods = new int[ names.length ];
+    int[] flags = new int[ names.length ];
+    long[][] segments = new long[ names.length ][];
+
+    int pos = 0;
+    for ( int i = 0; i < names.length; i++ ) {
+      if ( pos + CEN_HEADER_LENGTH > cen.limit() || cen.getInt( pos ) != CEN_SIG ) {
+        throw new ZipException( "Invalid central directory header" );
+      }
+      int nameLength = u16( cen, pos + 28 );
+      int extraLength = u16( cen, pos + 30 );
+      int commentLength = u16( cen, pos + 32 );
+      int extra = pos + CEN_HEADER_LENGTH + nameLength;
+      int extraEnd = extra + extraLength;
+      if ( extraEnd + commentLength > cen.limit() ) {
+        throw new ZipException( "Invalid central directory header" );
+      }
+      flags[ i ] = u16( cen, pos + 8 );
+      methods[ i ] = u16( cen, pos + 10 );
+      crcs[ i ] = cen.getInt( pos + 16 );
+      compressedSizes[ i ] = u32( cen, pos + 20 );
+      sizes[ i ] = u32( cen, pos + 24 );
+      offsets[ i ] = u32( cen, pos + 42 );
+      modes[ i ] = u16( cen, pos + 4 ) >> 8 == UNIX_HOST ? (int) ( u32( cen, pos + 38 ) >>> 16 ) : 0;
+      names[ i ] = new String( cen.array(), pos + CEN_HEADER_LENGTH, nameLength, StandardCharsets.UTF_8 );
+
+      while ( extra + 4 <= extraEnd ) {
+        int id = u16( cen, extra );
+        int length = u16( cen, extra + 2 );
+        int fieldEnd = extra + 4 + length;
+        if ( fieldEnd > extraEnd ) {
+          throw new ZipException( "Invalid extra field in " + names[ i ] );
+        }
+        if ( id == ZIP64_EXTRA_ID ) {
+          // only the fields that overflowed are present, in this order
+          int field = extra + 4;
+          if ( sizes[ i ] == 0xFFFFFFFFL ) {
+            sizes[ i ] = zip64Field( cen, field, fieldEnd, names[ i ] );
+            field += 8;
+          }
+          if ( compressedSizes[ i ] == 0xFFFFFFFFL ) {
+            compressedSizes[ i ] = zip64Field( cen, field, fieldEnd, names[ i ] );
+            field += 8;
+          }
+          if ( offsets[ i ] == 0xFFFFFFFFL ) {
+            offsets[ i ] = zip64Field( cen, field, fieldEnd, names[ i ] );
+          }
+        } else if ( id == DeflateSegments.EXTRA_ID ) {
+          segments[ i ] = DeflateSegments.decodeExtra( cen, extra + 4, length );
+        }
+        extra = fieldEnd;
+      }
+      pos = extraEnd + commentLength;
+    }
+
+    Integer[] order = new Integer[ names.length ];
+    for ( int i = 0; i < order.length; i++ ) {
+      order[ i ] = i;
+    }
+    Arrays.sort( order, new Comparator<Integer>() {
+      @Override public int compare( Integer a, Integer b ) {
+        return names[ a ].compareTo( names[ b ] );
+      }
+    } );
+
+    ZipIndex index = new ZipIndex( size, lastModified, hash, names.length );
+    for ( int i = 0; i < order.length; i++ ) {
+      int j = order[ i ];
+      index.names[ i ] = names[ j ];
+      index.offsets[ i ] = offsets[ j ];
+      index.compressedSizes[ i ] = compressedSizes[ j ];
+      index.sizes[ i ] = sizes[ j ];
+      index.crcs[ i ] = crcs[ j ];
+      index.modes[ i ] = modes[ j ];
+      index.methods[ i ] = methods[ j ];
+      index.flags[ i ] = flags[ j ];
+      index.segments[ i ] = segments[ j ];
+    }
+    return index;
+  }
+
+  private static long zip64Field( ByteBuffer cen, int field, int fieldEnd, String name ) throws ZipException {
+    if ( field + 8 > fieldEnd ) {
+      throw new ZipException( "Invalid zip64 extra field in " + name );
+    }
+    return cen.getLong( field );
+  }
+
+  private static ZipIndex readSidecar( Path sidecar, long size, long lastModified, long hash ) {
+    if ( !Files.isRegularFile( sidecar ) ) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( sidecar ) ) );
+      try {
+        if ( in.readInt() != SIDECAR_MAGIC || in.readLong() != size || in.readLong() != lastModified
+          || in.readLong() != hash ) {
+          return null;
+        }
+        ZipIndex index = new ZipIndex( size, lastModified, hash, in.readInt() );
+        for ( int i = 0; i < index.names.length; i++ ) {
+          index.names[ i ] = in.readUTF();
+          index.offsets[ i ] = in.readLong();
+          index.compressedSizes[ i ] = in.readLong();
+          index.sizes[ i ] = in.readLong();
+          index.crcs[ i ] = in.readInt();
+          index.modes[ i ] = in.readInt();
+          index.methods[ i ] = in.readUnsignedShort();
+          index.flags[ i ] = in.readUnsignedShort();
+          int segmentValues = in.readInt();
+          if ( segmentValues > 0 ) {
+            index.segments[ i ] = new long[ segmentValues ];
+            for ( int k = 0; k < segmentValues; k++ ) {
+              index.segments[ i ][ k ] = in.readLong();
+            }
+          }
+        }
+        return index;
+      } finally {
+        in.close();
+      }
+    } catch ( IOException e ) {
+      // unreadable sidecar, parse the archive again
+      return null;
+    }
+  }
+
+  private static void writeSidecar( ZipIndex index, Path sidecar ) {
+    Path tmp = null;
+    try {
+      tmp = Files.createTempFile( sidecar.toAbsolutePath().getParent(), sidecar.getFileName().toString(), ".tmp" );
+      DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) );
+      try {
+        out.writeInt( SIDECAR_MAGIC );
+        out.writeLong( index.archiveSize );
+        out.writeLong( index.archiveLastModified );
+        out.writeLong( index.eocdHash );
+        out.writeInt( index.names.length );
+        for ( int i = 0; i < index.names.length; i++ ) {
+          out.writeUTF( index.names[ i ] );
+          out.writeLong( index.offsets[ i ] );
+          out.writeLong( index.compressedSizes[ i ] );
+          out.writeLong( index.sizes[ i ] );
+          out.writeInt( index.crcs[ i ] );
+          out.writeInt( index.modes[ i ] );
+          out.writeShort( index.methods[ i ] );
+          out.writeShort( index.flags[ i ] );
+          long[] entrySegments = index.segments[ i ];
+          out.writeInt( entrySegments == null ? 0 : entrySegments.length );
+          if ( entrySegments != null ) {
+            for ( long value : entrySegments ) {
+              out.writeLong( value );
+            }
+          }
+        }
+      } finally {
+        out.close();
+      }
+      Files.move( tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    } catch ( IOException e ) {
+      // read-only location, the in memory index still applies
+      if ( tmp != null ) {
+        try {
+          Files.deleteIfExists( tmp );
+        } catch ( IOException ignored ) {
+          // nothing more to do
+        }
+      }
+    }
+  }
+
+  static ByteBuffer read( FileChannel channel, long position, int length ) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+    while ( buf.hasRemaining() ) {
+      if ( channel.read( buf, position + buf.position() ) < 0 ) {
+        throw new EOFException( "Unexpected end of zip file" );
+      }
+    }
+    buf.flip();
+    return buf;
+  }
+
+  private static int u16( ByteBuffer buf, int pos ) {
+    return buf.getShort( pos ) & 0xFFFF;
+  }
+
+  private static long u32( ByteBuffer buf, int pos ) {
+    return buf.getInt( pos ) & 0xFFFFFFFFL;
+  }
+
+  static final class CentralDirectory {
+    final long offset;
+    final int size;
+    final int count;
+
+    CentralDirectory( long offset, int size, int count ) {
+      this.offset = offset;
+      this.size = size;
+      this.count = count;
+    }
+  }
+
+  /**
+   * Reads a region of a channel with positional reads, leaving the channel position untouched.
+   */
+  static class ChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    ChannelInputStream( FileChannel channel, long start, long end ) {
+      this.channel = channel;
+      this.position = start;
+      this.end = end;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[ 1 ];
+      return read( b, 0, 1 ) < 0 ? -1 : b[ 0 ] & 0xFF;
+    }
+
+    @Override public int read( byte[] b, int off, int len ) throws IOException {
+      if ( position >= end ) {
+        return -1;
+      }
+      int n = channel.read( ByteBuffer.wrap( b, off, (int) Math.min( len, end - position ) ), position );
+      if ( n > 0 ) {
+        position += n;
+      }
+      return n;
+    }
+
+    @Override public int available() {
+      return (int) Math.min( Integer.MAX_VALUE, end - position );
+    }
+  }
+
+  /**
+   * Inflates raw deflate data, feeding the extra dummy byte a nowrap {@link Inflater} may need at the end.
+   */
+  static class EntryInflaterInputStream extends InflaterInputStream {
+    private final Semaphore permits;
+    private boolean eof;
+
+    EntryInflaterInputStream( InputStream in ) {
+      this( in, null );
+    }
+
+    EntryInflaterInputStream( InputStream in, Semaphore permits ) {
+      super( in, new Inflater( true ), 1024 * 8 );
+      this.permits = permits;
+    }
+
+    @Override public int read( byte[] b, int off, int len ) throws IOException {
+      if ( permits == null ) {
+        return super.read( b, off, len );
+      }
+      permits.acquireUninterruptibly();
+      try {
+        return super.read( b, off, len );
+      } finally {
+        permits.release();
+      }
+    }
+
+    @Override protected void fill() throws IOException {
+      if ( eof ) {
+        throw new EOFException( "Unexpected end of deflated entry" );
+      }
+      // fill() runs within read(), hand the permit back while waiting on the archive
+      if ( permits != null ) {
+        permits.release();
+      }
+      try {
+        len = in.read( buf, 0, buf.length );
+      } finally {
+        if ( permits != null ) {
+          permits.acquireUninterruptibly();
+        }
+      }
+      if ( len < 0 ) {
+        buf[ 0 ] = 0;
+        len = 1;
+        eof = true;
+      }
+      inf.setInput( buf, 0, len );
+    }
+
+    @Override public void close() throws IOException {
+      super.close();
+      inf.end();
+    }
+  }
+}
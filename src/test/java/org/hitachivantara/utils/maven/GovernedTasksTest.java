@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GovernedTasksTest {
+
+  private ExecutorService executorService;
+
+  @After public void tearDown() {
+    System.clearProperty( ParallelExecutors.IO_CONCURRENCY_PROPERTY );
+    if ( executorService != null ) {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test( timeout = 60000 ) public void boundsIoOfThreadPerTaskExecutor() throws Exception {
+    System.setProperty( ParallelExecutors.IO_CONCURRENCY_PROPERTY, "3" );
+    // like virtual threads: a thread per task, not a ThreadPoolExecutor
+    executorService = Executors.unconfigurableExecutorService( Executors.newCachedThreadPool() );
+    MemoryGovernor memoryGovernor = new MemoryGovernor( 1024 * 1024 );
+    GovernedTasks tasks = new GovernedTasks( executorService, memoryGovernor );
+
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    for ( int i = 0; i < 50; i++ ) {
+      tasks.submit( tasks.reserve( 1024 ), new Callable<Integer>() {
+        @Override public Integer call() throws Exception {
+          int now = running.incrementAndGet();
+          synchronized ( maxRunning ) {
+            maxRunning.set( Math.max( maxRunning.get(), now ) );
+          }
+          Thread.sleep( 5 );
+          running.decrementAndGet();
+          return 0;
+        }
+      } );
+    }
+    tasks.awaitAll();
+
+    assertTrue( "max " + maxRunning.get(), maxRunning.get() <= 3 );
+    // every reservation was released
+    assertEquals( 1024 * 1024, memoryGovernor.tryReserve( 1024 * 1024 ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class ) public void rejectsInvalidIoConcurrency() {
+    System.setProperty( ParallelExecutors.IO_CONCURRENCY_PROPERTY, "0" );
+    ParallelExecutors.getIoConcurrency();
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryGovernorTest {
+
+  @After public void tearDown() {
+    System.clearProperty( MemoryGovernor.LIMIT_PROPERTY );
+  }
+
+  @Test public void accountsShareTheLimitButTrackTheirOwnPeak() throws Exception {
+    MemoryGovernor budget = new MemoryGovernor( 100 );
+    MemoryGovernor first = budget.newAccount();
+    MemoryGovernor second = budget.newAccount();
+
+    long reserved = first.reserve( 60 );
+    assertEquals( -1, second.tryReserve( 50 ) );
+    assertEquals( 40, second.tryReserve( 40 ) );
+    first.release( reserved );
+    second.release( 40 );
+
+    MemoryGovernor third = budget.newAccount();
+    third.release( third.reserve( 10 ) );
+
+    assertEquals( 60, first.getPeak() );
+    assertEquals( 40, second.getPeak() );
+    assertEquals( 10, third.getPeak() );
+    assertEquals( 100, budget.getPeak() );
+  }
+
+  @Test public void parsesLimitWithSuffix() {
+    System.setProperty( MemoryGovernor.LIMIT_PROPERTY, "64m" );
+    assertEquals( 64L * 1024 * 1024, MemoryGovernor.getConfiguredLimit() );
+  }
+
+  @Test( expected = IllegalArgumentException.class ) public void rejectsZeroLimit() {
+    System.setProperty( MemoryGovernor.LIMIT_PROPERTY, "0" );
+    MemoryGovernor.getConfiguredLimit();
+  }
+
+  @Test( expected = IllegalArgumentException.class ) public void rejectsNegativeLimit() {
+    System.setProperty( MemoryGovernor.LIMIT_PROPERTY, "-1g" );
+    MemoryGovernor.getConfiguredLimit();
+  }
+}
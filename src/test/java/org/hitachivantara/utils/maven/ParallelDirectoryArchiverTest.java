@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelDirectoryArchiverTest {
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test public void syncCopiesSameSizedFileWithSlightlyNewerTime() throws IOException {
+    File in = temp.newFolder( "in" );
+    File out = temp.newFolder( "out" );
+    Path source = write( in, "file.txt", "first" );
+    Files.setLastModifiedTime( source, FileTime.fromMillis( 1500000000000L ) );
+    sync( in, out );
+
+    write( in, "file.txt", "later" );
+    Files.setLastModifiedTime( source, FileTime.fromMillis( 1500000001500L ) );
+    sync( in, out );
+
+    assertEquals( "later", read( new File( out, "file.txt" ) ) );
+  }
+
+  @Test public void syncRemovesStaleFilesAndDirectories() throws IOException {
+    File in = temp.newFolder( "in" );
+    File out = temp.newFolder( "out" );
+    write( in, "kept.txt", "kept" );
+    write( in, "gone.txt", "gone" );
+    write( in, "old/nested/file.txt", "old" );
+    sync( in, out );
+
+    Files.delete( in.toPath().resolve( "gone.txt" ) );
+    FileTrees.deleteTree( in.toPath().resolve( "old" ) );
+    sync( in, out );
+
+    assertEquals( "kept", read( new File( out, "kept.txt" ) ) );
+    assertFalse( new File( out, "gone.txt" ).exists() );
+    assertFalse( new File( out, "old" ).exists() );
+  }
+
+  @Test public void syncReplacesPathsWhoseTypeChanged() throws IOException {
+    File in = temp.newFolder( "in" );
+    File out = temp.newFolder( "out" );
+    write( in, "becomes-dir", "file" );
+    write( in, "becomes-file/sub/file.txt", "nested" );
+    sync( in, out );
+
+    Files.delete( in.toPath().resolve( "becomes-dir" ) );
+    write( in, "becomes-dir/file.txt", "now nested" );
+    FileTrees.deleteTree( in.toPath().resolve( "becomes-file" ) );
+    write( in, "becomes-file", "now a file" );
+    sync( in, out );
+
+    assertEquals( "now nested", read( new File( out, "becomes-dir/file.txt" ) ) );
+    assertTrue( new File( out, "becomes-file" ).isFile() );
+    assertEquals( "now a file", read( new File( out, "becomes-file" ) ) );
+  }
+
+  private static void sync( File in, File out ) throws IOException {
+    ParallelDirectoryArchiver archiver = new ParallelDirectoryArchiver();
+    archiver.enableLogging( new ConsoleLogger( ConsoleLogger.LEVEL_WARN, "test" ) );
+    archiver.setSync( true );
+    archiver.setDestFile( out );
+    archiver.addDirectory( in );
+    archiver.createArchive();
+  }
+
+  private static Path write( File dir, String name, String content ) throws IOException {
+    Path path = dir.toPath().resolve( name );
+    Files.createDirectories( path.getParent() );
+    return Files.write( path, content.getBytes( StandardCharsets.UTF_8 ) );
+  }
+
+  private static String read( File file ) throws IOException {
+    return new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 );
+  }
+}
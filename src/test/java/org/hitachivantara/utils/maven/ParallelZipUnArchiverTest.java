@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParallelZipUnArchiverTest {
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  @After public void clearProperties() {
+    System.clearProperty( ExtractionCache.CACHE_PROPERTY );
+  }
+
+  @Test public void uncachedExtractionDoesNotWriteThroughCacheLinks() throws IOException {
+    File v1 = zip( "v1.zip", "first version" );
+    File v2 = zip( "v2.zip", "second version" );
+    File cache = temp.newFolder( "cache" );
+    File m1 = temp.newFolder( "m1" );
+    File m2 = temp.newFolder( "m2" );
+
+    System.setProperty( ExtractionCache.CACHE_PROPERTY, cache.getPath() );
+    extract( v1, m1 );
+    System.clearProperty( ExtractionCache.CACHE_PROPERTY );
+    extract( v2, m1 );
+    System.setProperty( ExtractionCache.CACHE_PROPERTY, cache.getPath() );
+    extract( v1, m2 );
+
+    assertEquals( "second version", read( new File( m1, "dir/file.txt" ) ) );
+    assertEquals( "first version", read( new File( m2, "dir/file.txt" ) ) );
+  }
+
+  private File zip( String name, String content ) throws IOException {
+    File zip = temp.newFile( name );
+    ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zip ) );
+    try {
+      out.putNextEntry( new ZipEntry( "dir/file.txt" ) );
+      out.write( content.getBytes( StandardCharsets.UTF_8 ) );
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    return zip;
+  }
+
+  private static void extract( File zip, File destDirectory ) {
+    ParallelZipUnArchiver unArchiver = new ParallelZipUnArchiver( zip );
+    unArchiver.enableLogging( new ConsoleLogger( ConsoleLogger.LEVEL_WARN, "test" ) );
+    unArchiver.setDestDirectory( destDirectory );
+    unArchiver.extract();
+  }
+
+  private static String read( File file ) throws IOException {
+    return new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 );
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import org.codehaus.plexus.components.io.functions.ContentSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class SegmentedEntryWriterTest {
+
+  private static final int SEGMENT_SIZE = 64 * 1024;
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  private ExecutorService executorService;
+
+  @Before public void setUp() {
+    System.setProperty( DeflateSegments.SEGMENT_SIZE_PROPERTY, Integer.toString( SEGMENT_SIZE ) );
+    executorService = Executors.newFixedThreadPool( 4 );
+  }
+
+  @After public void tearDown() {
+    System.clearProperty( DeflateSegments.SEGMENT_SIZE_PROPERTY );
+    executorService.shutdownNow();
+  }
+
+  @Test public void appendsEntryReadableByZipFile() throws IOException {
+    File zip = newZip();
+    byte[] content = newContent( 10 * SEGMENT_SIZE + 123 );
+    append( zip, new MemoryGovernor( 64L * 1024 * 1024 ), "big/data.bin", content, content.length );
+
+    ZipFile zipFile = new ZipFile( zip );
+    try {
+      assertEquals( 2, zipFile.size() );
+      assertArrayEquals( "small".getBytes( StandardCharsets.UTF_8 ),
+        ZipIndexTest.readAll( zipFile.getInputStream( zipFile.getEntry( "small.txt" ) ) ) );
+      ZipEntry entry = zipFile.getEntry( "big/data.bin" );
+      assertEquals( content.length, entry.getSize() );
+      assertEquals( ZipIndexTest.crc( content ), entry.getCrc() );
+      assertArrayEquals( content, ZipIndexTest.readAll( zipFile.getInputStream( entry ) ) );
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  @Test public void segmentsInflateIndependently() throws Exception {
+    File zip = newZip();
+    byte[] content = newContent( 5 * SEGMENT_SIZE );
+    append( zip, new MemoryGovernor( 64L * 1024 * 1024 ), "data.bin", content, content.length );
+
+    ZipIndex index = ZipIndex.load( zip );
+    int i = index.find( "data.bin" );
+    long[] segments = index.getSegments( i );
+    assertNotNull( segments );
+    assertEquals( 5 * 3, segments.length );
+
+    FileChannel channel = FileChannel.open( zip.toPath(), StandardOpenOption.READ );
+    try {
+      long dataOffset = index.getDataOffset( channel, i );
+      for ( int s = 0; s < segments.length; s += 3 ) {
+        long compressedEnd = s + 3 < segments.length ? segments[ s + 3 ] : index.getCompressedSize( i );
+        int start = (int) segments[ s + 1 ];
+        byte[] compressed =
+          ZipIndex.read( channel, dataOffset + segments[ s ], (int) ( compressedEnd - segments[ s ] ) ).array();
+        byte[] data = DeflateSegments.inflate( compressed, SEGMENT_SIZE );
+        assertArrayEquals( Arrays.copyOfRange( content, start, start + SEGMENT_SIZE ), data );
+        assertEquals( ZipIndexTest.crc( data ), segments[ s + 2 ] );
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Test( timeout = 60000 ) public void completesWhenWindowExceedsMemoryLimit() throws IOException {
+    // a single segment reservation is already larger than the limit
+    File zip = newZip();
+    byte[] content = newContent( 20 * SEGMENT_SIZE );
+    MemoryGovernor memoryGovernor = new MemoryGovernor( SEGMENT_SIZE );
+    append( zip, memoryGovernor, "data.bin", content, content.length );
+
+    // every reservation was released
+    assertEquals( SEGMENT_SIZE, memoryGovernor.tryReserve( SEGMENT_SIZE ) );
+    ZipFile zipFile = new ZipFile( zip );
+    try {
+      assertArrayEquals( content, ZipIndexTest.readAll( zipFile.getInputStream( zipFile.getEntry( "data.bin" ) ) ) );
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  @Test public void storesActualSizeOfTransformedContent() throws IOException {
+    // filtering can change the content size announced by the resource
+    File zip = newZip();
+    byte[] content = newContent( 3 * SEGMENT_SIZE + 7 );
+    append( zip, new MemoryGovernor( 64L * 1024 * 1024 ), "filtered.txt", content, 10 * SEGMENT_SIZE );
+
+    ZipFile zipFile = new ZipFile( zip );
+    try {
+      ZipEntry entry = zipFile.getEntry( "filtered.txt" );
+      assertEquals( content.length, entry.getSize() );
+      assertArrayEquals( content, ZipIndexTest.readAll( zipFile.getInputStream( entry ) ) );
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  private void append( File zip, MemoryGovernor memoryGovernor, String name, final byte[] content, long size )
+    throws IOException {
+    ContentSupplier contents = new ContentSupplier() {
+      @Override public InputStream getContents() {
+        return new ByteArrayInputStream( content );
+      }
+    };
+    SegmentedEntryWriter.Entry entry =
+      new SegmentedEntryWriter.Entry( name, contents, size, System.currentTimeMillis(), 0644 );
+    new SegmentedEntryWriter( executorService, memoryGovernor ).append( zip, Collections.singletonList( entry ) );
+  }
+
+  private File newZip() throws IOException {
+    File zip = temp.newFile( "segmented.zip" );
+    ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zip ) );
+    try {
+      out.putNextEntry( new ZipEntry( "small.txt" ) );
+      out.write( "small".getBytes( StandardCharsets.UTF_8 ) );
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    return zip;
+  }
+
+  private static byte[] newContent( int length ) {
+    // compressible, but not so much that segments end up trivially small
+    byte[] content = new byte[ length ];
+    Random random = new Random( length );
+    for ( int i = 0; i < length; i++ ) {
+      content[ i ] = (byte) ( 'a' + random.nextInt( 8 ) );
+    }
+    return content;
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2018 by Hitachi Vantara
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.hitachivantara.utils.maven;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ZipIndexTest {
+
+  @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+  @After public void clearProperties() {
+    System.clearProperty( ZipIndex.PERSIST_PROPERTY );
+  }
+
+  @Test public void readsStoredAndDeflatedEntries() throws IOException {
+    File zip = temp.newFile( "entries.zip" );
+    byte[] stored = "stored content".getBytes( StandardCharsets.UTF_8 );
+    byte[] deflated = repeat( "deflated content ", 1000 );
+    ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zip ) );
+    try {
+      out.putNextEntry( new ZipEntry( "dir/" ) );
+      out.closeEntry();
+      ZipEntry entry = new ZipEntry( "dir/stored.txt" );
+      entry.setMethod( ZipEntry.STORED );
+      entry.setSize( stored.length );
+      entry.setCompressedSize( stored.length );
+      entry.setCrc( crc( stored ) );
+      out.putNextEntry( entry );
+      out.write( stored );
+      out.closeEntry();
+      out.putNextEntry( new ZipEntry( "a/deflated.txt" ) );
+      out.write( deflated );
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+
+    ZipIndex index = ZipIndex.load( zip );
+    assertTrue( index.isSupported() );
+    assertEquals( 3, index.size() );
+    // sorted by name
+    assertEquals( "a/deflated.txt", index.getName( 0 ) );
+    assertEquals( "dir/", index.getName( 1 ) );
+    assertEquals( "dir/stored.txt", index.getName( 2 ) );
+    assertTrue( index.isDirectory( 1 ) );
+
+    int storedPosition = index.find( "dir/stored.txt" );
+    int deflatedPosition = index.find( "a/deflated.txt" );
+    assertEquals( -1, index.find( "missing" ) );
+    assertEquals( ZipIndex.STORED, index.getMethod( storedPosition ) );
+    assertEquals( ZipIndex.DEFLATED, index.getMethod( deflatedPosition ) );
+    assertEquals( deflated.length, index.getSize( deflatedPosition ) );
+    assertTrue( index.getCompressedSize( deflatedPosition ) < deflated.length );
+    assertEquals( (int) crc( deflated ), index.getCrc( deflatedPosition ) );
+    assertNull( index.getSegments( deflatedPosition ) );
+
+    assertEquals( 1, index.lowerBound( "dir" ) );
+    assertEquals( 3, index.prefixEnd( "dir" ) );
+
+    FileChannel channel = FileChannel.open( zip.toPath(), StandardOpenOption.READ );
+    try {
+      assertArrayEquals( stored, readAll( index.openEntry( channel, storedPosition ) ) );
+      assertArrayEquals( deflated, readAll( index.openEntry( channel, deflatedPosition ) ) );
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Test public void readsZip64Archive() throws IOException {
+    // more entries than the end of central directory record can count
+    File zip = temp.newFile( "zip64.zip" );
+    int count = 0x10000 + 10;
+    ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zip ) );
+    try {
+      for ( int i = 0; i < count; i++ ) {
+        out.putNextEntry( new ZipEntry( String.format( "e%06d", i ) ) );
+        out.write( Integer.toString( i ).getBytes( StandardCharsets.UTF_8 ) );
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+
+    ZipIndex index = ZipIndex.load( zip );
+    assertEquals( count, index.size() );
+    int last = index.find( String.format( "e%06d", count - 1 ) );
+    assertEquals( count - 1, last );
+    FileChannel channel = FileChannel.open( zip.toPath(), StandardOpenOption.READ );
+    try {
+      assertArrayEquals( Integer.toString( count - 1 ).getBytes( StandardCharsets.UTF_8 ),
+        readAll( index.openEntry( channel, last ) ) );
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Test public void rejectsStaleSidecar() throws IOException {
+    System.setProperty( ZipIndex.PERSIST_PROPERTY, "true" );
+    File first = temp.newFile( "first.zip" );
+    writeZip( first, "old.txt" );
+    ZipIndex.load( first );
+    File sidecar = ZipIndex.getSidecar( first ).toFile();
+    assertTrue( sidecar.isFile() );
+
+    // left behind by an earlier build of an archive of the same size
+    File second = temp.newFile( "second.zip" );
+    writeZip( second, "new.txt" );
+    assertEquals( first.length(), second.length() );
+    assertTrue( second.setLastModified( first.lastModified() + 10000 ) );
+    Files.copy( sidecar.toPath(), ZipIndex.getSidecar( second ) );
+
+    ZipIndex index = ZipIndex.load( second );
+    assertEquals( 1, index.size() );
+    assertEquals( "new.txt", index.getName( 0 ) );
+    for ( String name : temp.getRoot().list() ) {
+      assertFalse( name, name.endsWith( ".tmp" ) );
+    }
+  }
+
+  @Test( expected = ZipException.class ) public void rejectsTruncatedZip64Extra() throws IOException {
+    File zip = temp.newFile( "truncated.zip" );
+    ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zip ) );
+    try {
+      ZipEntry entry = new ZipEntry( "file.txt" );
+      entry.setExtra( new byte[] { (byte) 0xfe, (byte) 0xca, 4, 0, 1, 2, 3, 4 } );
+      out.putNextEntry( entry );
+      out.write( "content".getBytes( StandardCharsets.UTF_8 ) );
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+
+    // claim an overflowed size whose zip64 extra only has room for half of it
+    byte[] bytes = Files.readAllBytes( zip.toPath() );
+    ByteBuffer buf = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+    int cen = bytes.length - 22 - 46 - "file.txt".length() - 8;
+    assertEquals( 0x02014b50, buf.getInt( cen ) );
+    buf.putInt( cen + 24, 0xFFFFFFFF );
+    buf.putShort( cen + 46 + "file.txt".length(), (short) 0x0001 );
+    Files.write( zip.toPath(), bytes );
+
+    ZipIndex.load( zip );
+  }
+
+  private static void writeZip( File zip, String name ) throws IOException {
+    ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zip ) );
+    try {
+      out.putNextEntry( new ZipEntry( name ) );
+      out.write( name.getBytes( StandardCharsets.UTF_8 ) );
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+  }
+
+  static byte[] repeat( String s, int times ) {
+    StringBuilder builder = new StringBuilder();
+    for ( int i = 0; i < times; i++ ) {
+      builder.append( s ).append( i );
+    }
+    return builder.toString().getBytes( StandardCharsets.UTF_8 );
+  }
+
+  static long crc( byte[] data ) {
+    CRC32 crc = new CRC32();
+    crc.update( data );
+    return crc.getValue();
+  }
+
+  static byte[] readAll( InputStream in ) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[ 1024 * 8 ];
+      int n;
+      while ( ( n = in.read( buf ) ) >= 0 ) {
+        out.write( buf, 0, n );
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}